@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xwiki.contrib.xdom.regex.Matcher;
+import org.xwiki.contrib.xdom.regex.Pattern;
+import org.xwiki.contrib.xdom.regex.PatternBuilder;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.XDOM;
+
+/**
+ * Measures the matching of a pattern against every inline block of a synthetic document, the way callers do it
+ * block by block, and through a whole document scan.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark
+{
+    @Param({ "1000", "20000" })
+    private int size;
+
+    @Param({ "0.05", "0.3" })
+    private double symbolDensity;
+
+    @Param({ "^hello$ ^world$", "^[a-z]+$\\. ^.*$" })
+    private String pattern;
+
+    private Pattern compiledPattern;
+
+    private XDOM document;
+
+    private List<Block> blocks;
+
+    /**
+     * Generate the document and compile the pattern.
+     */
+    @Setup
+    public void setUp()
+    {
+        compiledPattern = new PatternBuilder().build(pattern);
+        document = SyntheticDocuments.generate(size, symbolDensity);
+        blocks = document.getBlocks(block -> block.getChildren().isEmpty(), Block.Axes.DESCENDANT);
+    }
+
+    /**
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void matches(Blackhole blackhole)
+    {
+        for (Block block : blocks) {
+            blackhole.consume(compiledPattern.matches(block));
+        }
+    }
+
+    /**
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void getMatcherStopOnNoMatch(Blackhole blackhole)
+    {
+        for (Block block : blocks) {
+            blackhole.consume(compiledPattern.getMatcher(block, true).matches());
+        }
+    }
+
+    /**
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void getMatcherFullMatch(Blackhole blackhole)
+    {
+        for (Block block : blocks) {
+            blackhole.consume(compiledPattern.getMatcher(block, false).matches());
+        }
+    }
+
+    /**
+     * @param blackhole consumes the results
+     */
+    @Benchmark
+    public void reusableMatcher(Blackhole blackhole)
+    {
+        Matcher matcher = compiledPattern.matcher(true);
+        for (Block block : blocks) {
+            blackhole.consume(matcher.reset(block).matches());
+        }
+    }
+
+    /**
+     * @return the number of matches in the document
+     */
+    @Benchmark
+    public long findAll()
+    {
+        return compiledPattern.findAll(document).count();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.xdom.regex.Pattern;
+import org.xwiki.contrib.xdom.regex.PatternBuilder;
+import org.xwiki.contrib.xdom.regex.PatternCache;
+
+/**
+ * Measures the compilation of string patterns.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternBuilderBenchmark
+{
+    @Param({ "^hello$", "^[Hh]ello$, ^w.*$\\.", "? ^(?i)xwiki$ \\- ^[a-z]+$ ? ^.*$ \\. \\( ^the$ \\)" })
+    private String pattern;
+
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    private final PatternCache patternCache = new PatternCache();
+
+    /**
+     * @return the compiled pattern
+     */
+    @Benchmark
+    public Pattern build()
+    {
+        return patternBuilder.build(pattern);
+    }
+
+    /**
+     * @return the cached compiled pattern
+     */
+    @Benchmark
+    public Pattern cachedBuild()
+    {
+        return patternCache.get(pattern);
+    }
+}
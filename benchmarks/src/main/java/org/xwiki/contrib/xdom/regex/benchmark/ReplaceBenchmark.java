@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.xdom.regex.Matcher;
+import org.xwiki.contrib.xdom.regex.Pattern;
+import org.xwiki.contrib.xdom.regex.PatternBuilder;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.XDOM;
+
+/**
+ * Measures the replacement of every match of a pattern in a synthetic document. Since the replacements modify the
+ * document, a fresh copy of the document is made before each invocation.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplaceBenchmark
+{
+    @Param({ "1000", "20000" })
+    private int size;
+
+    @Param({ "0.05", "0.3" })
+    private double symbolDensity;
+
+    private final Pattern pattern = new PatternBuilder().build("\\. ^.*$");
+
+    private XDOM originalDocument;
+
+    private XDOM document;
+
+    /**
+     * Generate the original document.
+     */
+    @Setup(Level.Trial)
+    public void generateDocument()
+    {
+        originalDocument = SyntheticDocuments.generate(size, symbolDensity);
+    }
+
+    /**
+     * Copy the original document.
+     */
+    @Setup(Level.Invocation)
+    public void copyDocument()
+    {
+        document = originalDocument.clone();
+    }
+
+    /**
+     * @return the modified document
+     */
+    @Benchmark
+    public XDOM replaceEachMatch()
+    {
+        List<Matcher> matchers = pattern.findAll(document).collect(Collectors.toList());
+        for (Matcher matcher : matchers) {
+            matcher.replace(new SpecialSymbolBlock('!'));
+        }
+
+        return document;
+    }
+
+    /**
+     * @return the modified document
+     */
+    @Benchmark
+    public XDOM replaceAll()
+    {
+        pattern.replaceAll(document, matcher -> new SpecialSymbolBlock('!'));
+
+        return document;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+/**
+ * Generates reproducible documents made of paragraphs of words, spaces and special symbols.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class SyntheticDocuments
+{
+    /**
+     * The number of inline blocks in each generated paragraph.
+     */
+    public static final int PARAGRAPH_SIZE = 100;
+
+    private static final String[] WORDS = { "the", "wiki", "page", "hello", "world", "XWiki", "regex", "block" };
+
+    private static final char[] SYMBOLS = { '.', ',', '-', '!', '?', ':', '(', ')' };
+
+    private SyntheticDocuments()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param size the approximate number of inline blocks of the document
+     * @param symbolDensity the probability for a token to be a special symbol rather than a word
+     * @return a new document
+     */
+    public static XDOM generate(int size, double symbolDensity)
+    {
+        Random random = new Random(size);
+        List<Block> paragraphs = new ArrayList<>();
+        for (int generated = 0; generated < size; generated += PARAGRAPH_SIZE) {
+            List<Block> inlineBlocks = new ArrayList<>(PARAGRAPH_SIZE);
+            while (inlineBlocks.size() < PARAGRAPH_SIZE) {
+                if (random.nextDouble() < symbolDensity) {
+                    inlineBlocks.add(new SpecialSymbolBlock(SYMBOLS[random.nextInt(SYMBOLS.length)]));
+                } else {
+                    inlineBlocks.add(new WordBlock(WORDS[random.nextInt(WORDS.length)]));
+                }
+                inlineBlocks.add(new SpaceBlock());
+            }
+            paragraphs.add(new ParagraphBlock(inlineBlocks));
+        }
+
+        return new XDOM(paragraphs);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Scans many documents concurrently with the same patterns, for bulk processing such as exports, migrations or link
+ * checks. The documents are given as suppliers, so that they are only loaded and parsed by the task that scans them;
+ * at most a given number of documents are pending at the same time, the next supplier being only taken from the
+ * batch once a pending document is done. The matches of each document are given to a {@link DocumentCallback}.
+ * <p>
+ * Unless an executor is given, each batch runs on a new executor that is shut down at the end of the batch: on Java
+ * 21 and later it starts a virtual thread per document, which suits suppliers blocking on I/O, and otherwise it is a
+ * pool with as many threads as available processors. A batch matcher holds no state, so a single instance can be
+ * shared and used concurrently.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class BatchMatcher
+{
+    /**
+     * The default maximum number of documents being loaded or scanned at the same time.
+     */
+    public static final int DEFAULT_MAX_PENDING_DOCUMENTS = 64;
+
+    private final PatternSet patterns;
+
+    private final Executor executor;
+
+    private final int maxPendingDocuments;
+
+    /**
+     * Build a batch matcher running on the default executor.
+     *
+     * @param pattern the pattern to find in the documents
+     */
+    public BatchMatcher(Pattern pattern)
+    {
+        this(new PatternSet(Collections.singletonList(pattern)));
+    }
+
+    /**
+     * Build a batch matcher running on the default executor.
+     *
+     * @param patterns the patterns to find in the documents
+     */
+    public BatchMatcher(PatternSet patterns)
+    {
+        this(patterns, null, DEFAULT_MAX_PENDING_DOCUMENTS);
+    }
+
+    /**
+     * Build a batch matcher.
+     *
+     * @param patterns the patterns to find in the documents
+     * @param executor the executor running the scan of each document, or null to use a new default executor for
+     *     each batch
+     * @param maxPendingDocuments the maximum number of documents being loaded or scanned at the same time
+     * @throws IllegalArgumentException if the maximum number of pending documents is not positive
+     */
+    public BatchMatcher(PatternSet patterns, Executor executor, int maxPendingDocuments)
+    {
+        if (maxPendingDocuments < 1) {
+            throw new IllegalArgumentException(
+                String.format("The maximum number of pending documents must be positive: [%d]", maxPendingDocuments));
+        }
+
+        this.patterns = patterns;
+        this.executor = executor;
+        this.maxPendingDocuments = maxPendingDocuments;
+    }
+
+    /**
+     * Find the matches of the patterns in every document of a stream. See
+     * {@link #matchAll(Iterable, DocumentCallback)}.
+     *
+     * @param documents the suppliers of the roots of the documents to scan
+     * @param callback receives the matches of each document
+     * @return the number of documents taken from the stream
+     * @throws InterruptedException if the current thread is interrupted while waiting for pending documents
+     */
+    public int matchAll(Stream<? extends Supplier<? extends Block>> documents, DocumentCallback callback)
+        throws InterruptedException
+    {
+        return matchAll(documents.iterator(), callback);
+    }
+
+    /**
+     * Find the matches of the patterns in every document of a batch. The documents are scanned concurrently, each
+     * one on a single task, and this method returns once all of them are done. The documents should not be modified
+     * while they are scanned.
+     *
+     * @param documents the suppliers of the roots of the documents to scan
+     * @param callback receives the matches of each document
+     * @return the number of documents taken from the batch
+     * @throws InterruptedException if the current thread is interrupted while waiting for pending documents
+     */
+    public int matchAll(Iterable<? extends Supplier<? extends Block>> documents, DocumentCallback callback)
+        throws InterruptedException
+    {
+        return matchAll(documents.iterator(), callback);
+    }
+
+    private int matchAll(Iterator<? extends Supplier<? extends Block>> documents, DocumentCallback callback)
+        throws InterruptedException
+    {
+        ExecutorService defaultExecutor = (executor == null) ? createDefaultExecutor() : null;
+        Executor batchExecutor = (executor == null) ? defaultExecutor : executor;
+        Semaphore pendingDocuments = new Semaphore(maxPendingDocuments);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        int count = 0;
+        try {
+            while (true) {
+                // Wait for a pending document to be done before taking the next one
+                pendingDocuments.acquire();
+                if (failure.get() != null || !documents.hasNext()) {
+                    pendingDocuments.release();
+                    break;
+                }
+
+                Supplier<? extends Block> document = documents.next();
+                int index = count;
+                try {
+                    CompletableFuture.runAsync(() -> match(index, document, callback), batchExecutor)
+                        .handle((result, exception) -> {
+                            Throwable cause = getCause(exception);
+                            if (cause instanceof RuntimeException) {
+                                callback.onFailure(index, (RuntimeException) cause);
+                            } else if (cause != null) {
+                                failure.compareAndSet(null, cause);
+                            }
+                            return null;
+                        }).whenComplete((result, exception) -> {
+                            if (exception != null) {
+                                // Thrown by the failure callback
+                                failure.compareAndSet(null, getCause(exception));
+                            }
+                            pendingDocuments.release();
+                        });
+                } catch (RejectedExecutionException e) {
+                    pendingDocuments.release();
+                    throw e;
+                }
+                count++;
+            }
+
+            // Wait for all the pending documents
+            pendingDocuments.acquire(maxPendingDocuments);
+            pendingDocuments.release(maxPendingDocuments);
+        } finally {
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdown();
+            }
+        }
+
+        Throwable exception = failure.get();
+        if (exception instanceof RuntimeException) {
+            throw (RuntimeException) exception;
+        } else if (exception instanceof Error) {
+            throw (Error) exception;
+        } else if (exception != null) {
+            throw new CompletionException(exception);
+        }
+
+        return count;
+    }
+
+    private void match(int index, Supplier<? extends Block> document, DocumentCallback callback)
+    {
+        Block root = document.get();
+        List<Matcher> matches = patterns.findAll(root).collect(Collectors.toList());
+        callback.onMatches(index, root, matches);
+    }
+
+    private static Throwable getCause(Throwable exception)
+    {
+        return (exception instanceof CompletionException && exception.getCause() != null) ? exception.getCause()
+            : exception;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task if they are available (Java 21 and later), or a pool
+     *     with as many threads as available processors otherwise
+     */
+    static ExecutorService createDefaultExecutor()
+    {
+        return createDefaultExecutor("newVirtualThreadPerTaskExecutor");
+    }
+
+    /**
+     * @param factoryMethodName the name of the method of {@link Executors} creating an executor that starts a virtual
+     *     thread per task
+     * @return the executor created by the given method, or a pool with as many threads as available processors if the
+     *     method is not available
+     */
+    static ExecutorService createDefaultExecutor(String factoryMethodName)
+    {
+        try {
+            // Looked up at runtime since the library is compiled for Java 8
+            Method method = Executors.class.getMethod(factoryMethodName);
+
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            // Before Java 21 the method is either missing or a disabled preview feature
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordLiteral;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * A deterministic finite automaton recognizing the block patterns of one or several {@link Pattern}, so that a list
+ * of siblings can be scanned in a single left-to-right pass, Aho-Corasick style, instead of evaluating a window of
+ * blocks around every candidate block.
+ * <p>
+ * The automaton works on block classes rather than on blocks: spaces, words, special symbols, the symbols of the
+ * specific symbol patterns and the exact literals of the word patterns each have their own class, and every other
+ * block has a class that no block pattern accepts. A state is reached when the last blocks of the scanned siblings
+ * have the right classes to be matched by a pattern, in which case the word regexes still have to be evaluated by a
+ * {@link Matcher}. The states are computed once, when the automaton is built, so that an automaton can be shared by
+ * several threads.
+ * <p>
+ * The number of states may grow exponentially with the length of the patterns: when there would be too many of them,
+ * when a block pattern doesn't map to block classes or when a pattern is not fixed-length, the automaton is not
+ * {@link #isComplete() complete} and the anchored matching should be used instead.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class BlockAutomaton
+{
+    /**
+     * The maximum number of transitions of an automaton, to bound its memory usage.
+     */
+    private static final int MAX_TRANSITIONS = 1 << 20;
+
+    private static final int OTHER_CLASS = 0;
+
+    private static final int SPACE_CLASS = 1;
+
+    private static final int WORD_CLASS = 2;
+
+    private static final int SYMBOL_CLASS = 3;
+
+    private final List<Pattern> patterns;
+
+    private final Map<Pattern, Integer> patternIndexes = new IdentityHashMap<>();
+
+    private final Map<Character, Integer> symbolClasses = new HashMap<>();
+
+    private final Map<String, Integer> wordClasses = new HashMap<>();
+
+    private final int classCount;
+
+    /**
+     * The index of the first block pattern of each pattern, the block patterns of all the patterns being numbered
+     * one after the other. The index following the last block pattern of a pattern means that the pattern is
+     * complete.
+     */
+    private final int[] offsets;
+
+    /**
+     * For each block pattern index, the block classes accepted by the block pattern.
+     */
+    private final boolean[][] acceptedClasses;
+
+    /**
+     * For each state and block class, the next state.
+     */
+    private final int[][] transitions;
+
+    /**
+     * For each state, the indexes of the patterns that are complete, in the order of the patterns.
+     */
+    private final int[][] completePatterns;
+
+    /**
+     * @param patterns the patterns to recognize
+     */
+    BlockAutomaton(List<Pattern> patterns)
+    {
+        List<Pattern> distinctPatterns = new ArrayList<>(patterns.size());
+        for (Pattern pattern : patterns) {
+            if (this.patternIndexes.putIfAbsent(pattern, distinctPatterns.size()) == null) {
+                distinctPatterns.add(pattern);
+            }
+        }
+        this.patterns = Collections.unmodifiableList(distinctPatterns);
+
+        int blockPatternCount = 0;
+        this.offsets = new int[this.patterns.size()];
+        for (int i = 0; i < this.offsets.length; i++) {
+            this.offsets[i] = blockPatternCount;
+            blockPatternCount += this.patterns.get(i).getBlockPatterns().size() + 1;
+        }
+
+        int nextClass = SYMBOL_CLASS + 1;
+        for (Pattern pattern : this.patterns) {
+            for (BlockPattern<? extends Block> blockPattern : pattern.getBlockPatterns()) {
+                if (blockPattern instanceof SpecialSymbolBlockPattern) {
+                    char symbol = ((SpecialSymbolBlockPattern) blockPattern).getSymbol();
+                    if (symbol != '\u0000' && !symbolClasses.containsKey(symbol)) {
+                        symbolClasses.put(symbol, nextClass++);
+                    }
+                } else if (blockPattern instanceof WordBlockPattern) {
+                    String literal = PatternSet.getExactLiteral((WordBlockPattern) blockPattern);
+                    if (literal != null && !wordClasses.containsKey(literal)) {
+                        wordClasses.put(literal, nextClass++);
+                    }
+                }
+            }
+        }
+        this.classCount = nextClass;
+
+        this.acceptedClasses = new boolean[blockPatternCount][];
+        boolean isComplete = this.patterns.stream().allMatch(Pattern::isFixedLength);
+        for (int i = 0; i < this.offsets.length; i++) {
+            List<BlockPattern<? extends Block>> blockPatterns = this.patterns.get(i).getBlockPatterns();
+            for (int j = 0; j < blockPatterns.size(); j++) {
+                this.acceptedClasses[this.offsets[i] + j] = getAcceptedClasses(blockPatterns.get(j));
+                isComplete &= this.acceptedClasses[this.offsets[i] + j] != null;
+            }
+        }
+
+        List<int[]> stateTransitions = new ArrayList<>();
+        List<int[]> stateCompletePatterns = new ArrayList<>();
+        if (isComplete) {
+            isComplete = computeStates(stateTransitions, stateCompletePatterns);
+        }
+        this.transitions = isComplete ? stateTransitions.toArray(new int[0][]) : null;
+        this.completePatterns = isComplete ? stateCompletePatterns.toArray(new int[0][]) : null;
+    }
+
+    /**
+     * @return the block classes accepted by the given block pattern, or null if it can't be expressed with classes
+     */
+    private boolean[] getAcceptedClasses(BlockPattern<? extends Block> blockPattern)
+    {
+        boolean[] accepted = new boolean[classCount];
+        if (blockPattern instanceof SpaceBlockPattern) {
+            accepted[SPACE_CLASS] = true;
+        } else if (blockPattern instanceof SpecialSymbolBlockPattern) {
+            char symbol = ((SpecialSymbolBlockPattern) blockPattern).getSymbol();
+            if (symbol != '\u0000') {
+                accepted[symbolClasses.get(symbol)] = true;
+            } else {
+                accepted[SYMBOL_CLASS] = true;
+                symbolClasses.values().forEach(symbolClass -> accepted[symbolClass] = true);
+            }
+        } else if (blockPattern instanceof WordBlockPattern) {
+            String literal = PatternSet.getExactLiteral((WordBlockPattern) blockPattern);
+            if (literal != null) {
+                accepted[wordClasses.get(literal)] = true;
+            } else {
+                accepted[WORD_CLASS] = true;
+                wordClasses.values().forEach(wordClass -> accepted[wordClass] = true);
+            }
+        } else {
+            return null;
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Compute the reachable states with a breadth-first traversal. A state is the set of the indexes of the block
+     * patterns that the next block should be matched against, and of the complete patterns.
+     *
+     * @return false if there are too many states
+     */
+    private boolean computeStates(List<int[]> stateTransitions, List<int[]> stateCompletePatterns)
+    {
+        List<BitSet> states = new ArrayList<>();
+        Map<BitSet, Integer> stateIndexes = new HashMap<>();
+        states.add(new BitSet());
+        stateIndexes.put(states.get(0), 0);
+
+        for (int i = 0; i < states.size(); i++) {
+            if ((long) states.size() * classCount > MAX_TRANSITIONS) {
+                return false;
+            }
+
+            BitSet state = states.get(i);
+            int[] nextStates = new int[classCount];
+            for (int blockClass = 0; blockClass < classCount; blockClass++) {
+                BitSet nextState = getNextState(state, blockClass);
+                Integer nextStateIndex = stateIndexes.get(nextState);
+                if (nextStateIndex == null) {
+                    nextStateIndex = states.size();
+                    states.add(nextState);
+                    stateIndexes.put(nextState, nextStateIndex);
+                }
+                nextStates[blockClass] = nextStateIndex;
+            }
+            stateTransitions.add(nextStates);
+            stateCompletePatterns.add(getCompletePatterns(state));
+        }
+
+        return true;
+    }
+
+    private BitSet getNextState(BitSet state, int blockClass)
+    {
+        BitSet nextState = new BitSet();
+        // A match may start at any block
+        for (int offset : offsets) {
+            if (acceptedClasses[offset][blockClass]) {
+                nextState.set(offset + 1);
+            }
+        }
+        for (int i = state.nextSetBit(0); i >= 0; i = state.nextSetBit(i + 1)) {
+            if (acceptedClasses[i] != null && acceptedClasses[i][blockClass]) {
+                nextState.set(i + 1);
+            }
+        }
+
+        return nextState;
+    }
+
+    private int[] getCompletePatterns(BitSet state)
+    {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < offsets.length; i++) {
+            if (state.get(offsets[i] + patterns.get(i).getBlockPatterns().size())) {
+                indexes.add(i);
+            }
+        }
+
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return false if the automaton could not be built, in which case the other methods should not be called
+     */
+    boolean isComplete()
+    {
+        return transitions != null;
+    }
+
+    /**
+     * @return the recognized patterns, without duplicates
+     */
+    List<Pattern> getPatterns()
+    {
+        return patterns;
+    }
+
+    /**
+     * @param pattern one of the recognized patterns
+     * @return the index of the pattern in {@link #getPatterns()}
+     */
+    int getPatternIndex(Pattern pattern)
+    {
+        return patternIndexes.get(pattern);
+    }
+
+    /**
+     * @return the state of the automaton before the first block of a list of siblings
+     */
+    int getInitialState()
+    {
+        return 0;
+    }
+
+    /**
+     * @param state the current state
+     * @param block the next block of the siblings
+     * @return the state of the automaton after the given block
+     */
+    int getNextState(int state, Block block)
+    {
+        return transitions[state][getBlockClass(block)];
+    }
+
+    /**
+     * @param state a state of the automaton
+     * @return the indexes of the patterns that can be matched by the blocks ending at the block that led to this
+     *         state, in ascending order
+     */
+    int[] getCompletePatterns(int state)
+    {
+        return completePatterns[state];
+    }
+
+    private int getBlockClass(Block block)
+    {
+        if (block instanceof WordBlock) {
+            return wordClasses.isEmpty() ? WORD_CLASS
+                : wordClasses.getOrDefault(((WordBlock) block).getWord(), WORD_CLASS);
+        } else if (block instanceof SpecialSymbolBlock) {
+            return symbolClasses.getOrDefault(((SpecialSymbolBlock) block).getSymbol(), SYMBOL_CLASS);
+        } else if (block instanceof SpaceBlock) {
+            return SPACE_CLASS;
+        } else {
+            return OTHER_CLASS;
+        }
+    }
+}
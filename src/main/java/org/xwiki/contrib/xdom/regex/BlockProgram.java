@@ -0,0 +1,901 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import org.xwiki.contrib.xdom.regex.internal.AlternativeBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.rendering.block.Block;
+
+/**
+ * A compiled pattern with quantifiers or alternations, as a program of a Thompson automaton whose instructions match
+ * one block, jump, or fork the execution. The program is run by a Pike virtual machine that follows every possible
+ * execution in parallel, one block after the other, so a search takes a time linear in the number of blocks and in
+ * the size of the program, whatever the pattern: there is no backtracking. When several executions match, the one
+ * preferred by a backtracking engine is kept: the leftmost match, with greedy quantifiers and alternatives tried in
+ * order.
+ * <p>
+ * A program is immutable and can be shared by several threads.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class BlockProgram
+{
+    /**
+     * The maximum number of block patterns of a pattern, once its bounded repetitions are expanded.
+     */
+    static final int MAX_SIZE = 100000;
+
+    private static final int BLOCK = 0;
+
+    private static final int SPLIT = 1;
+
+    private static final int JUMP = 2;
+
+    private static final int ACCEPT = 3;
+
+    private final int[] opcodes;
+
+    /**
+     * For a block instruction, the index of its block pattern; for a split or a jump, the preferred target.
+     */
+    private final int[] firstArguments;
+
+    /**
+     * For a split, the other target.
+     */
+    private final int[] secondArguments;
+
+    private final List<BlockPattern<? extends Block>> instructionBlockPatterns;
+
+    private final List<BlockPattern<? extends Block>> blockPatterns;
+
+    private final int minLength;
+
+    private final int maxLength;
+
+    /**
+     * A node of the syntax tree of a pattern.
+     */
+    abstract static class Node
+    {
+        /**
+         * @return the minimum number of blocks matched by the node
+         */
+        abstract int getMinLength();
+
+        /**
+         * @return the maximum number of blocks matched by the node, or -1 if it's not bounded
+         */
+        abstract int getMaxLength();
+
+        /**
+         * Add the block patterns matched by the node to the given list, when the node always matches the same
+         * sequence of block patterns.
+         *
+         * @return false if the node matches sequences of different lengths or with different block patterns
+         */
+        abstract boolean collectSequence(List<BlockPattern<? extends Block>> sequence);
+
+        abstract void compile(Compiler compiler);
+    }
+
+    /**
+     * A single block pattern.
+     */
+    static final class Atom extends Node
+    {
+        private final BlockPattern<? extends Block> blockPattern;
+
+        Atom(BlockPattern<? extends Block> blockPattern)
+        {
+            this.blockPattern = blockPattern;
+        }
+
+        @Override
+        int getMinLength()
+        {
+            return 1;
+        }
+
+        @Override
+        int getMaxLength()
+        {
+            return 1;
+        }
+
+        @Override
+        boolean collectSequence(List<BlockPattern<? extends Block>> sequence)
+        {
+            sequence.add(blockPattern);
+
+            return true;
+        }
+
+        @Override
+        void compile(Compiler compiler)
+        {
+            compiler.emit(BLOCK, compiler.addBlockPattern(blockPattern), 0);
+        }
+    }
+
+    /**
+     * Nodes matched one after the other.
+     */
+    static final class Sequence extends Node
+    {
+        private final List<Node> nodes;
+
+        Sequence(List<Node> nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        @Override
+        int getMinLength()
+        {
+            return nodes.stream().mapToInt(Node::getMinLength).sum();
+        }
+
+        @Override
+        int getMaxLength()
+        {
+            int length = 0;
+            for (Node node : nodes) {
+                if (node.getMaxLength() < 0) {
+                    return -1;
+                }
+                length += node.getMaxLength();
+            }
+
+            return length;
+        }
+
+        @Override
+        boolean collectSequence(List<BlockPattern<? extends Block>> sequence)
+        {
+            for (Node node : nodes) {
+                if (!node.collectSequence(sequence)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        void compile(Compiler compiler)
+        {
+            nodes.forEach(node -> node.compile(compiler));
+        }
+    }
+
+    /**
+     * Nodes of which one should be matched, the first ones being preferred.
+     */
+    static final class Alternation extends Node
+    {
+        private final List<Node> alternatives;
+
+        Alternation(List<Node> alternatives)
+        {
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        int getMinLength()
+        {
+            return alternatives.stream().mapToInt(Node::getMinLength).min().orElse(0);
+        }
+
+        @Override
+        int getMaxLength()
+        {
+            int length = 0;
+            for (Node alternative : alternatives) {
+                if (alternative.getMaxLength() < 0) {
+                    return -1;
+                }
+                length = Math.max(length, alternative.getMaxLength());
+            }
+
+            return length;
+        }
+
+        @Override
+        boolean collectSequence(List<BlockPattern<? extends Block>> sequence)
+        {
+            return alternatives.size() == 1 && alternatives.get(0).collectSequence(sequence);
+        }
+
+        @Override
+        void compile(Compiler compiler)
+        {
+            List<Integer> jumps = new ArrayList<>();
+            for (int i = 0; i < alternatives.size() - 1; i++) {
+                int split = compiler.emit(SPLIT, compiler.size() + 1, 0);
+                alternatives.get(i).compile(compiler);
+                jumps.add(compiler.emit(JUMP, 0, 0));
+                compiler.secondArguments.set(split, compiler.size());
+            }
+            alternatives.get(alternatives.size() - 1).compile(compiler);
+            jumps.forEach(jump -> compiler.firstArguments.set(jump, compiler.size()));
+        }
+    }
+
+    /**
+     * A node matched several times in a row, as many times as possible.
+     */
+    static final class Repetition extends Node
+    {
+        private final Node node;
+
+        private final int min;
+
+        private final int max;
+
+        /**
+         * @param node the repeated node
+         * @param min the minimum number of repetitions
+         * @param max the maximum number of repetitions, or -1 if it's not bounded
+         */
+        Repetition(Node node, int min, int max)
+        {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        int getMinLength()
+        {
+            return node.getMinLength() * min;
+        }
+
+        @Override
+        int getMaxLength()
+        {
+            if (max < 0 || node.getMaxLength() < 0) {
+                return (max == 0 || node.getMaxLength() == 0) ? 0 : -1;
+            }
+
+            return node.getMaxLength() * max;
+        }
+
+        @Override
+        boolean collectSequence(List<BlockPattern<? extends Block>> sequence)
+        {
+            if (min != max) {
+                return false;
+            }
+            for (int i = 0; i < min; i++) {
+                if (!node.collectSequence(sequence)) {
+                    return false;
+                } else if (sequence.size() > MAX_SIZE) {
+                    throw new IllegalArgumentException(
+                        String.format("The pattern is larger than [%d] blocks", MAX_SIZE));
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        void compile(Compiler compiler)
+        {
+            for (int i = 0; i < min; i++) {
+                node.compile(compiler);
+            }
+
+            if (max < 0) {
+                // Loop on the node for as long as possible
+                int split = compiler.emit(SPLIT, compiler.size() + 1, 0);
+                node.compile(compiler);
+                compiler.emit(JUMP, split, 0);
+                compiler.secondArguments.set(split, compiler.size());
+            } else {
+                // Each optional occurrence can only be matched after the previous one
+                List<Integer> splits = new ArrayList<>();
+                for (int i = min; i < max; i++) {
+                    splits.add(compiler.emit(SPLIT, compiler.size() + 1, 0));
+                    node.compile(compiler);
+                }
+                splits.forEach(split -> compiler.secondArguments.set(split, compiler.size()));
+            }
+        }
+    }
+
+    /**
+     * The instructions being emitted for a syntax tree.
+     */
+    private static final class Compiler
+    {
+        private final List<Integer> opcodes = new ArrayList<>();
+
+        private final List<Integer> firstArguments = new ArrayList<>();
+
+        private final List<Integer> secondArguments = new ArrayList<>();
+
+        private final List<BlockPattern<? extends Block>> blockPatterns = new ArrayList<>();
+
+        private int size()
+        {
+            return opcodes.size();
+        }
+
+        private int emit(int opcode, int firstArgument, int secondArgument)
+        {
+            opcodes.add(opcode);
+            firstArguments.add(firstArgument);
+            secondArguments.add(secondArgument);
+
+            return opcodes.size() - 1;
+        }
+
+        private int addBlockPattern(BlockPattern<? extends Block> blockPattern)
+        {
+            if (blockPatterns.size() >= MAX_SIZE) {
+                throw new IllegalArgumentException(String.format("The pattern is larger than [%d] blocks", MAX_SIZE));
+            }
+            blockPatterns.add(blockPattern);
+
+            return blockPatterns.size() - 1;
+        }
+    }
+
+    /**
+     * The result of a search.
+     */
+    static final class Match
+    {
+        private final int start;
+
+        private final List<BlockPattern<? extends Block>> blockPatterns;
+
+        private final int searchedBlocks;
+
+        private Match(int start, List<BlockPattern<? extends Block>> blockPatterns, int searchedBlocks)
+        {
+            this.start = start;
+            this.blockPatterns = blockPatterns;
+            this.searchedBlocks = searchedBlocks;
+        }
+
+        /**
+         * @return true if a match was found
+         */
+        boolean isMatch()
+        {
+            return blockPatterns != null;
+        }
+
+        /**
+         * @return the number of blocks that were evaluated during the search
+         */
+        int getSearchedBlocks()
+        {
+            return searchedBlocks;
+        }
+
+        /**
+         * @return the index of the first matched block
+         */
+        int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return the block pattern that matched each matched block
+         */
+        List<BlockPattern<? extends Block>> getBlockPatterns()
+        {
+            return blockPatterns;
+        }
+    }
+
+    /**
+     * The block instructions executed by a thread of the virtual machine, from the last one.
+     */
+    private static final class Path
+    {
+        private final int instruction;
+
+        private final Path previous;
+
+        private final int length;
+
+        private Path(int instruction, Path previous)
+        {
+            this.instruction = instruction;
+            this.previous = previous;
+            this.length = (previous != null) ? previous.length + 1 : 1;
+        }
+    }
+
+    /**
+     * The threads of the virtual machine waiting on the same block, by decreasing priority.
+     */
+    private static final class Threads
+    {
+        private final int[] instructions;
+
+        private final Path[] paths;
+
+        private final int[] starts;
+
+        /**
+         * The search each thread belongs to, see {@link BlockProgram#searchAll}.
+         */
+        private final int[] searches;
+
+        private int size;
+
+        private Threads(int capacity)
+        {
+            this.instructions = new int[capacity];
+            this.paths = new Path[capacity];
+            this.starts = new int[capacity];
+            this.searches = new int[capacity];
+        }
+
+        private void clear()
+        {
+            Arrays.fill(paths, 0, size, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * The state of the virtual machine, which can be reused for several searches to avoid allocating it each time.
+     * An execution is not thread-safe.
+     */
+    final class Execution
+    {
+        private Threads currentThreads = new Threads(opcodes.length);
+
+        private Threads nextThreads = new Threads(opcodes.length);
+
+        /**
+         * The step at which each instruction was last added to a list of threads, to add it only once per step.
+         */
+        private final int[] steps = new int[opcodes.length];
+
+        /**
+         * The last step used, the steps increasing from one search to the next so that {@link #steps} doesn't have to
+         * be cleared.
+         */
+        private int step;
+
+        /**
+         * The instructions remaining to follow when adding a thread. Each followed instruction pushes at most two
+         * instructions.
+         */
+        private final int[] stack = new int[2 * opcodes.length + 1];
+
+        private Execution()
+        {
+        }
+
+        /**
+         * Prepare a new search.
+         *
+         * @param stepCount the number of steps used by the search
+         * @return the first step of the search
+         */
+        private int start(int stepCount)
+        {
+            currentThreads.clear();
+            nextThreads.clear();
+            if (step > Integer.MAX_VALUE - stepCount - 1) {
+                Arrays.fill(steps, 0);
+                step = 0;
+            }
+            step += stepCount;
+
+            return step - stepCount + 1;
+        }
+
+        private void swapThreads()
+        {
+            Threads threads = currentThreads;
+            currentThreads = nextThreads;
+            nextThreads = threads;
+            nextThreads.clear();
+        }
+
+        /**
+         * Add a thread, following its jumps and splits (preferred target first) until it reaches block or accept
+         * instructions.
+         */
+        private void addThread(Threads threads, int threadStep, int instruction, Path path, int start, int search)
+        {
+            int stackSize = 0;
+            stack[stackSize++] = instruction;
+            while (stackSize > 0) {
+                int currentInstruction = stack[--stackSize];
+                if (steps[currentInstruction] != threadStep) {
+                    steps[currentInstruction] = threadStep;
+                    if (opcodes[currentInstruction] == JUMP) {
+                        stack[stackSize++] = firstArguments[currentInstruction];
+                    } else if (opcodes[currentInstruction] == SPLIT) {
+                        stack[stackSize++] = secondArguments[currentInstruction];
+                        stack[stackSize++] = firstArguments[currentInstruction];
+                    } else {
+                        threads.instructions[threads.size] = currentInstruction;
+                        threads.paths[threads.size] = path;
+                        threads.starts[threads.size] = start;
+                        threads.searches[threads.size] = search;
+                        threads.size++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile a syntax tree.
+     *
+     * @param node the root of the syntax tree
+     */
+    BlockProgram(Node node)
+    {
+        this(compile(node), node.getMinLength(), node.getMaxLength());
+    }
+
+    private BlockProgram(Compiler compiler, int minLength, int maxLength)
+    {
+        this.opcodes = compiler.opcodes.stream().mapToInt(Integer::intValue).toArray();
+        this.firstArguments = compiler.firstArguments.stream().mapToInt(Integer::intValue).toArray();
+        this.secondArguments = compiler.secondArguments.stream().mapToInt(Integer::intValue).toArray();
+        this.instructionBlockPatterns = compiler.blockPatterns;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+
+        // Only keep the distinct block patterns, that were copied when expanding the repetitions
+        List<BlockPattern<? extends Block>> distinctBlockPatterns = new ArrayList<>();
+        for (BlockPattern<? extends Block> blockPattern : compiler.blockPatterns) {
+            if (distinctBlockPatterns.stream().noneMatch(distinct -> distinct == blockPattern)) {
+                distinctBlockPatterns.add(blockPattern);
+            }
+        }
+        this.blockPatterns = Collections.unmodifiableList(distinctBlockPatterns);
+    }
+
+    private static Compiler compile(Node node)
+    {
+        Compiler compiler = new Compiler();
+        node.compile(compiler);
+        compiler.emit(ACCEPT, 0, 0);
+
+        return compiler;
+    }
+
+    /**
+     * Write the instructions of the program, see {@link #read(DataInput, List)}.
+     *
+     * @param output where to write the program
+     * @param blockPatternIndexes gives the index of each distinct block pattern of the program, see
+     *     {@link #getBlockPatterns()}
+     * @throws IOException if the program can't be written
+     */
+    void write(DataOutput output, ToIntFunction<BlockPattern<? extends Block>> blockPatternIndexes) throws IOException
+    {
+        output.writeInt(minLength);
+        output.writeInt(maxLength);
+        output.writeInt(instructionBlockPatterns.size());
+        for (BlockPattern<? extends Block> blockPattern : instructionBlockPatterns) {
+            output.writeInt(blockPatternIndexes.applyAsInt(blockPattern));
+        }
+        output.writeInt(opcodes.length);
+        for (int i = 0; i < opcodes.length; i++) {
+            output.writeByte(opcodes[i]);
+            output.writeInt(firstArguments[i]);
+            output.writeInt(secondArguments[i]);
+        }
+    }
+
+    /**
+     * Read a program written by {@link #write(DataOutput, ToIntFunction)}, without compiling it again.
+     *
+     * @param input where to read the program from
+     * @param blockPatterns the distinct block patterns of the program
+     * @return the program
+     * @throws IOException if the program can't be read or is not valid
+     */
+    static BlockProgram read(DataInput input, List<BlockPattern<? extends Block>> blockPatterns) throws IOException
+    {
+        int minLength = input.readInt();
+        int maxLength = input.readInt();
+        if (minLength < 0 || maxLength < -1 || (maxLength >= 0 && maxLength < minLength)) {
+            throw new IOException(String.format("Invalid program lengths [%d, %d]", minLength, maxLength));
+        }
+
+        Compiler compiler = new Compiler();
+        int blockPatternCount = readSize(input);
+        for (int i = 0; i < blockPatternCount; i++) {
+            compiler.addBlockPattern(blockPatterns.get(readIndex(input, blockPatterns.size())));
+        }
+
+        int size = readSize(input);
+        for (int i = 0; i < size; i++) {
+            int opcode = input.readByte();
+            int firstArgument = input.readInt();
+            int secondArgument = input.readInt();
+            if (opcode == BLOCK) {
+                checkIndex(firstArgument, blockPatternCount);
+            } else if (opcode == SPLIT) {
+                checkIndex(firstArgument, size);
+                checkIndex(secondArgument, size);
+            } else if (opcode == JUMP) {
+                checkIndex(firstArgument, size);
+            } else if (opcode != ACCEPT) {
+                throw new IOException(String.format("Invalid program opcode [%d]", opcode));
+            }
+            compiler.emit(opcode, firstArgument, secondArgument);
+        }
+        if (size == 0) {
+            throw new IOException("Empty program");
+        }
+
+        return new BlockProgram(compiler, minLength, maxLength);
+    }
+
+    private static int readSize(DataInput input) throws IOException
+    {
+        int size = input.readInt();
+        // The lists are grown as the program is read, so that an invalid size only leads to the end of the input
+        if (size < 0) {
+            throw new IOException(String.format("Invalid program size [%d]", size));
+        }
+
+        return size;
+    }
+
+    private static int readIndex(DataInput input, int size) throws IOException
+    {
+        return checkIndex(input.readInt(), size);
+    }
+
+    private static int checkIndex(int index, int size) throws IOException
+    {
+        if (index < 0 || index >= size) {
+            throw new IOException(String.format("Invalid program index [%d]", index));
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the distinct block patterns of the program, in the order in which they appear in the pattern
+     */
+    List<BlockPattern<? extends Block>> getBlockPatterns()
+    {
+        return blockPatterns;
+    }
+
+    /**
+     * @return the minimum number of blocks of a match
+     */
+    int getMinLength()
+    {
+        return minLength;
+    }
+
+    /**
+     * @return the maximum number of blocks of a match, or -1 if it's not bounded
+     */
+    int getMaxLength()
+    {
+        return maxLength;
+    }
+
+    /**
+     * @return a new state of the virtual machine, to reuse for the searches made by a single thread
+     */
+    Execution createExecution()
+    {
+        return new Execution();
+    }
+
+    /**
+     * @return a block pattern accepting every block that can be the first block of a match
+     */
+    BlockPattern<? extends Block> getFirstBlockPattern()
+    {
+        Execution execution = new Execution();
+        Threads threads = execution.currentThreads;
+        execution.addThread(threads, execution.start(1), 0, null, 0, 0);
+
+        List<BlockPattern<? extends Block>> firstBlockPatterns = new ArrayList<>();
+        for (int i = 0; i < threads.size; i++) {
+            if (opcodes[threads.instructions[i]] == BLOCK) {
+                BlockPattern<? extends Block> blockPattern =
+                    instructionBlockPatterns.get(firstArguments[threads.instructions[i]]);
+                if (firstBlockPatterns.stream().noneMatch(first -> first == blockPattern)) {
+                    firstBlockPatterns.add(blockPattern);
+                }
+            }
+        }
+
+        return (firstBlockPatterns.size() == 1) ? firstBlockPatterns.get(0)
+            : new AlternativeBlockPattern(firstBlockPatterns);
+    }
+
+    /**
+     * Search for the leftmost match in the given blocks.
+     *
+     * @param execution the state of the virtual machine to use, see {@link #createExecution()}
+     * @param blocks the blocks in which to search
+     * @param from the index of the first block of the search
+     * @param end the index following the last block of the search
+     * @param anchored true if the match should start at the first block of the search
+     * @param wordMatchCache the results of the word regular expressions shared by the scan, or null
+     * @return the result of the search
+     */
+    Match search(Execution execution, Block[] blocks, int from, int end, boolean anchored,
+        WordMatchCache wordMatchCache)
+    {
+        Match match = null;
+
+        int firstStep = execution.start(end - from + 2);
+        int position = from;
+        for (; position <= end; position++) {
+            int step = firstStep + position - from;
+            Threads threads = execution.currentThreads;
+            if (match == null && position < end && (!anchored || position == from)) {
+                // A new match may start at each block, with the lowest priority
+                execution.addThread(threads, step, 0, null, position, 0);
+            }
+            if (threads.size == 0) {
+                break;
+            }
+
+            for (int i = 0; i < threads.size; i++) {
+                int instruction = threads.instructions[i];
+                if (opcodes[instruction] == ACCEPT) {
+                    match = createMatch(threads.starts[i], threads.paths[i], position - from);
+                    // The remaining threads have a lower priority
+                    break;
+                } else if (position < end
+                    && test(instructionBlockPatterns.get(firstArguments[instruction]), blocks[position],
+                        wordMatchCache)) {
+                    execution.addThread(execution.nextThreads, step + 1, instruction + 1,
+                        new Path(instruction, threads.paths[i]), threads.starts[i], 0);
+                }
+            }
+
+            execution.swapThreads();
+        }
+
+        return (match != null) ? match : new Match(-1, null, Math.min(position, end) - from);
+    }
+
+    /**
+     * Search for all the matches in the given blocks, each one being the leftmost match following the previous one,
+     * in a single pass over the blocks.
+     * <p>
+     * Once a match is found, the threads having a higher priority may still find a longer match, so its end is not
+     * known yet; searching again from its end once it's known would evaluate the same blocks again, and take a
+     * quadratic time. Instead, the search for the next match starts right away, in parallel and with a lower
+     * priority, and so on: the searches are chained, each one starting at the end of the match of the previous one.
+     * When a search finds a longer match, the following searches are dropped and a new one starts at the end of the
+     * new match. A thread that reaches an instruction already reached by a thread of a previous search on the same
+     * block would only find the same blocks as this thread, so it is dropped: each instruction is run at most once
+     * per block, and the whole search takes a time linear in the number of blocks and in the size of the program.
+     *
+     * @param execution the state of the virtual machine to use, see {@link #createExecution()}
+     * @param blocks the blocks in which to search
+     * @param from the index of the first block of the search
+     * @param end the index following the last block of the search
+     * @param wordMatchCache the results of the word regular expressions shared by the scan, or null
+     * @param consumer receives the matches, in order
+     */
+    void searchAll(Execution execution, Block[] blocks, int from, int end, WordMatchCache wordMatchCache,
+        Consumer<Match> consumer)
+    {
+        // The match of each chained search, or null if it has no match yet; the searches before the first one have
+        // been reported, and only the last search can start new threads
+        List<Match> searchMatches = new ArrayList<>();
+        searchMatches.add(null);
+        int firstSearch = 0;
+
+        // Two steps per block, the second one being used when a search is started after a match was found
+        int firstStep = execution.start(2 * (end - from + 2));
+        for (int position = from; position <= end; position++) {
+            int step = firstStep + 2 * (position - from);
+            Threads threads = execution.currentThreads;
+            int lastSearch = searchMatches.size() - 1;
+            if (searchMatches.get(lastSearch) == null && position < end) {
+                // A new match may start at each block, with the lowest priority
+                execution.addThread(threads, step, 0, null, position, lastSearch);
+            }
+
+            for (int i = 0; i < threads.size; i++) {
+                int instruction = threads.instructions[i];
+                int search = threads.searches[i];
+                if (opcodes[instruction] == ACCEPT) {
+                    Path path = threads.paths[i];
+                    searchMatches.set(search, createMatch(threads.starts[i], path, path.length));
+                    // The remaining threads have a lower priority: they belong to the same search, or to the
+                    // following searches that depended on the previous match of this search
+                    searchMatches.subList(search + 1, searchMatches.size()).clear();
+                    Arrays.fill(threads.paths, i + 1, threads.size, null);
+                    threads.size = i + 1;
+                    if (position < end) {
+                        // The instructions of the threads that were just dropped may be reached again by the next
+                        // search, but not the ones of the remaining threads
+                        for (int j = 0; j <= i; j++) {
+                            execution.steps[threads.instructions[j]] = step + 1;
+                        }
+                        searchMatches.add(null);
+                        execution.addThread(threads, step + 1, 0, null, position, search + 1);
+                    }
+                } else if (position < end
+                    && test(instructionBlockPatterns.get(firstArguments[instruction]), blocks[position],
+                        wordMatchCache)) {
+                    execution.addThread(execution.nextThreads, step + 2, instruction + 1,
+                        new Path(instruction, threads.paths[i]), threads.starts[i], search);
+                }
+            }
+
+            execution.swapThreads();
+
+            // Report the matches of the first searches that have no thread left, since they can't change anymore
+            Threads nextThreads = execution.currentThreads;
+            while (firstSearch < searchMatches.size() && searchMatches.get(firstSearch) != null
+                && (nextThreads.size == 0 || nextThreads.searches[0] != firstSearch)) {
+                consumer.accept(searchMatches.get(firstSearch++));
+            }
+        }
+    }
+
+    private static boolean test(BlockPattern<? extends Block> blockPattern, Block block, WordMatchCache wordMatchCache)
+    {
+        if (wordMatchCache != null && blockPattern instanceof WordBlockPattern) {
+            return wordMatchCache.test((WordBlockPattern) blockPattern, block, null);
+        }
+
+        return blockPattern.test(block);
+    }
+
+    private Match createMatch(int start, Path path, int searchedBlocks)
+    {
+        List<BlockPattern<? extends Block>> matchedBlockPatterns =
+            new ArrayList<>(Collections.nCopies(path.length, null));
+        for (Path current = path; current != null; current = current.previous) {
+            matchedBlockPatterns.set(current.length - 1,
+                instructionBlockPatterns.get(firstArguments[current.instruction]));
+        }
+
+        return new Match(start, matchedBlockPatterns, searchedBlocks);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * A set of blocks compared by identity, that keeps the order in which they were added, for {@link XDOMIndex}. A block
+ * is added and removed in constant time: a removed block leaves an empty slot in the list of blocks, and the list is
+ * compacted when it has as many empty slots as blocks, or when it is read. A set is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class BlockSet
+{
+    /**
+     * The number of empty slots below which the list of blocks is not compacted when a block is removed.
+     */
+    private static final int MIN_COMPACTED_SLOTS = 16;
+
+    /**
+     * The blocks in the order they were added, a removed block being replaced by null.
+     */
+    private final List<Block> blocks = new ArrayList<>();
+
+    /**
+     * The index of each block in {@link #blocks}.
+     */
+    private final Map<Block, Integer> indexes = new IdentityHashMap<>();
+
+    /**
+     * Add a block at the end of the set, if it's not already in the set.
+     *
+     * @param block the block to add
+     */
+    void add(Block block)
+    {
+        if (!indexes.containsKey(block)) {
+            indexes.put(block, blocks.size());
+            blocks.add(block);
+        }
+    }
+
+    /**
+     * Remove a block from the set, if it's in the set.
+     *
+     * @param block the block to remove
+     */
+    void remove(Block block)
+    {
+        Integer index = indexes.remove(block);
+        if (index != null) {
+            blocks.set(index, null);
+
+            int emptySlots = blocks.size() - indexes.size();
+            if (emptySlots >= MIN_COMPACTED_SLOTS && emptySlots >= indexes.size()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * @param block a block
+     * @return true if the block is in the set
+     */
+    boolean contains(Block block)
+    {
+        return indexes.containsKey(block);
+    }
+
+    /**
+     * @return the number of blocks in the set
+     */
+    int size()
+    {
+        return indexes.size();
+    }
+
+    /**
+     * @return the blocks of the set, in the order in which they were added; the list is only valid until the set is
+     *     modified
+     */
+    List<Block> getBlocks()
+    {
+        if (blocks.size() != indexes.size()) {
+            compact();
+        }
+
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * @return a copy of the blocks of the set, in the order in which they were added, that is not affected by the
+     *     later modifications of the set
+     */
+    List<Block> toList()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(getBlocks()));
+    }
+
+    private void compact()
+    {
+        int size = 0;
+        for (Block block : blocks) {
+            if (block != null) {
+                indexes.put(block, size);
+                blocks.set(size++, block);
+            }
+        }
+        blocks.subList(size, blocks.size()).clear();
+    }
+}
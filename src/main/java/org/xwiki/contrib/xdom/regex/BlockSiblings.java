@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * A snapshot of the children of a block, being scanned for matches.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class BlockSiblings
+{
+    /**
+     * The blocks to scan.
+     */
+    final Block[] blocks;
+
+    /**
+     * The index of the block currently being scanned.
+     */
+    int index;
+
+    /**
+     * For each pattern, the index of the block following its last match in these siblings.
+     */
+    Map<Pattern, Integer> matchEnds;
+
+    /**
+     * For each pattern that is not fixed-length, the matches found in these siblings that were not reported yet.
+     */
+    Map<Pattern, Deque<Matcher>> nextMatches;
+
+    /**
+     * When the siblings are scanned with an automaton, the matches found in these siblings, in the order of the index
+     * of the block they are anchored on.
+     */
+    List<Matcher> matches;
+
+    /**
+     * When the siblings are scanned with an automaton and the matchers are reused, the positions of the windows
+     * recognized by the automaton, which are evaluated as they are reached: the index of the block a window is
+     * anchored on in the high 32 bits, and the index of its pattern in the low 32 bits, in increasing order.
+     */
+    long[] matchPositions;
+
+    /**
+     * The index in {@link #matches} or {@link #matchPositions} of the next match to report.
+     */
+    int nextMatch;
+
+    /**
+     * @param blocks the blocks to scan
+     */
+    BlockSiblings(Block[] blocks)
+    {
+        this.blocks = blocks;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.List;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Receives the matches of each document scanned by a {@link BatchMatcher}. The documents are scanned concurrently, so
+ * the methods of a callback may be called by several threads at the same time and in any order.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@FunctionalInterface
+public interface DocumentCallback
+{
+    /**
+     * Receive the matches of a document.
+     *
+     * @param index the position of the document in the batch, starting at 0
+     * @param root the root of the document, as given by its supplier
+     * @param matches the matches found in the document, in document order; the matchers are not reused and can be
+     *     kept
+     */
+    void onMatches(int index, Block root, List<Matcher> matches);
+
+    /**
+     * Handle the failure to get or to scan a document, or to handle its matches. By default, the exception is thrown
+     * again, which stops the batch: the documents that are not started yet are skipped, and the exception is thrown
+     * by {@link BatchMatcher#matchAll(Iterable, DocumentCallback)} once the started documents are done. A callback
+     * that returns normally lets the batch go on with the next documents.
+     *
+     * @param index the position of the document in the batch, starting at 0
+     * @param exception the exception thrown by the supplier of the document, by the scan or by
+     *     {@link #onMatches(int, Block, List)}
+     */
+    default void onFailure(int index, RuntimeException exception)
+    {
+        throw exception;
+    }
+}
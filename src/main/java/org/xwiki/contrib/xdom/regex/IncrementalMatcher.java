@@ -0,0 +1,525 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Keeps the matches of a pattern in a block tree up to date while the tree is edited, without scanning the whole
+ * tree again after each edit. The children of every block of the tree are recorded along with their matches; when
+ * the tree is modified, only the blocks whose children changed have to be given to {@link #update(Collection)}.
+ * <p>
+ * The new children of a changed block are compared to the recorded ones: only the windows of blocks overlapping the
+ * changed children, which are at most as long as the pattern, are matched again when the pattern is
+ * {@link Pattern#isFixedLength() fixed-length}, and the scan stops as soon as the following matches are known to be
+ * the same as before. The children of a pattern that is not fixed-length are scanned again entirely. The blocks that
+ * were added to the tree are scanned, and the records of the removed ones are dropped. An update thus costs a time
+ * proportional to the size of the edit rather than to the size of the document.
+ * <p>
+ * The matches are the same as the ones of {@link Pattern#findAll(Block)}, except that the root is not a candidate
+ * itself. An incremental matcher is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class IncrementalMatcher
+{
+    /**
+     * The children of a block, as they were when they were last scanned, and their matches.
+     */
+    private static final class ScannedChildren
+    {
+        private final Block[] blocks;
+
+        private final List<Matcher> matches;
+
+        /**
+         * The index of the first block of each match in {@link #blocks}.
+         */
+        private final int[] matchStarts;
+
+        ScannedChildren(Block[] blocks, List<Matcher> matches, int[] matchStarts)
+        {
+            this.blocks = blocks;
+            this.matches = matches;
+            this.matchStarts = matchStarts;
+        }
+    }
+
+    /**
+     * The position of the traversal of the recorded children, see {@link #getMatches()}.
+     */
+    private static final class Position
+    {
+        private final ScannedChildren children;
+
+        private int nextChild;
+
+        private int nextMatch;
+
+        Position(ScannedChildren children)
+        {
+            this.children = children;
+        }
+    }
+
+    /**
+     * The difference between the recorded children of a block and its current children. The changed children are the
+     * ones between the children that were kept at the start and at the end.
+     */
+    private static final class ChildrenChange
+    {
+        private final Block block;
+
+        private final ScannedChildren previousChildren;
+
+        private final Block[] blocks;
+
+        private final int prefixLength;
+
+        private final int suffixLength;
+
+        ChildrenChange(Block block, ScannedChildren previousChildren)
+        {
+            this.block = block;
+            this.previousChildren = previousChildren;
+            this.blocks = block.getChildren().toArray(new Block[0]);
+
+            Block[] previousBlocks = previousChildren.blocks;
+            int prefix = 0;
+            int maxLength = Math.min(previousBlocks.length, blocks.length);
+            while (prefix < maxLength && previousBlocks[prefix] == blocks[prefix]) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < maxLength - prefix
+                && previousBlocks[previousBlocks.length - 1 - suffix] == blocks[blocks.length - 1 - suffix]) {
+                suffix++;
+            }
+            this.prefixLength = prefix;
+            this.suffixLength = suffix;
+        }
+
+        boolean isChanged()
+        {
+            return prefixLength != previousChildren.blocks.length || prefixLength != blocks.length;
+        }
+
+        void collectChangedBlocks(Set<Block> removedBlocks, Set<Block> addedBlocks)
+        {
+            Block[] previousBlocks = previousChildren.blocks;
+            for (int i = prefixLength; i < previousBlocks.length - suffixLength; i++) {
+                removedBlocks.add(previousBlocks[i]);
+            }
+            for (int i = prefixLength; i < blocks.length - suffixLength; i++) {
+                addedBlocks.add(blocks[i]);
+            }
+        }
+    }
+
+    private final Pattern pattern;
+
+    private final Block root;
+
+    private final List<Pattern> candidatePatterns;
+
+    private final Map<Block, ScannedChildren> scannedChildren = new IdentityHashMap<>();
+
+    /**
+     * The matches found by the current scan or update.
+     */
+    private List<Matcher> newMatches = new ArrayList<>();
+
+    /**
+     * The matches of the changed blocks before the current update, by first matched block. They are kept instead of
+     * the same matches found again, see {@link #getKnownMatch(Matcher)}.
+     */
+    private Map<Block, Matcher> knownMatches = Collections.emptyMap();
+
+    /**
+     * Find the matches of a pattern in a block tree.
+     *
+     * @param pattern the pattern to look for
+     * @param root the root of the block tree
+     */
+    public IncrementalMatcher(Pattern pattern, Block root)
+    {
+        this.pattern = pattern;
+        this.root = root;
+        this.candidatePatterns = Collections.singletonList(pattern);
+
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        long start = (metrics != null) ? System.nanoTime() : 0L;
+
+        scan(root);
+        newMatches = new ArrayList<>();
+
+        if (metrics != null) {
+            metrics.onScan(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the pattern to look for
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * @return the root of the block tree
+     */
+    public Block getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Get the current matches, in the order in which {@link Pattern#findAll(Block)} would find them. The recorded
+     * children are traversed, without matching anything.
+     *
+     * @return the matches of the pattern in the tree, as of the last update
+     */
+    public List<Matcher> getMatches()
+    {
+        List<Matcher> matches = new ArrayList<>();
+        int primaryPosition = pattern.getPrimaryBlockPatternPosition();
+
+        Deque<Position> positions = new ArrayDeque<>();
+        ScannedChildren rootChildren = scannedChildren.get(root);
+        if (rootChildren != null) {
+            positions.push(new Position(rootChildren));
+        }
+        while (!positions.isEmpty()) {
+            Position position = positions.peek();
+            ScannedChildren children = position.children;
+            if (position.nextChild < children.blocks.length) {
+                int index = position.nextChild++;
+                // The matches are found on the block matched by the primary block pattern
+                while (position.nextMatch < children.matches.size()
+                    && children.matchStarts[position.nextMatch] + primaryPosition == index) {
+                    matches.add(children.matches.get(position.nextMatch++));
+                }
+
+                // Go through the children of the block before going to its next sibling
+                ScannedChildren blockChildren = scannedChildren.get(children.blocks[index]);
+                if (blockChildren != null) {
+                    positions.push(new Position(blockChildren));
+                }
+            } else {
+                positions.pop();
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Update the matches after the children of a block changed, see {@link #update(Collection)}.
+     *
+     * @param changedBlock a block whose children were added, removed, replaced or moved
+     * @return the matches that were not known before the update
+     */
+    public List<Matcher> update(Block changedBlock)
+    {
+        return update(Collections.singletonList(changedBlock));
+    }
+
+    /**
+     * Update the matches after some blocks of the tree were modified. The blocks to give are the ones whose list of
+     * children changed: the parents of the blocks that were added, removed or replaced. The descendants of an added
+     * block don't have to be given. Since words, spaces and special symbols can't be modified, changing a word means
+     * replacing its block, and thus changing the children of its parent.
+     *
+     * @param changedBlocks the blocks whose children were added, removed, replaced or moved
+     * @return the matches that were not known before the update, in no particular order: a match of the same blocks
+     *     as a previous match, even if they were moved, is not reported and the previous {@link Matcher} is kept
+     */
+    public List<Matcher> update(Collection<Block> changedBlocks)
+    {
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        long start = (metrics != null) ? System.nanoTime() : 0L;
+
+        // Compare the children of all the changed blocks before forgetting or scanning anything, so that a block
+        // moved from a changed block to another one is kept whatever the order of the changed blocks
+        Set<Block> distinctChangedBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<ChildrenChange> changes = new ArrayList<>();
+        Set<Block> removedBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Block> addedBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Block> unscannedBlocks = new ArrayList<>();
+        for (Block changedBlock : changedBlocks) {
+            if (distinctChangedBlocks.add(changedBlock)) {
+                ScannedChildren children = scannedChildren.get(changedBlock);
+                if (children != null) {
+                    ChildrenChange change = new ChildrenChange(changedBlock, children);
+                    if (change.isChanged()) {
+                        change.collectChangedBlocks(removedBlocks, addedBlocks);
+                        changes.add(change);
+                    }
+                } else if (!changedBlock.getChildren().isEmpty() && isInTree(changedBlock)) {
+                    // The block had no children when its parent was scanned, so all its children were added
+                    unscannedBlocks.add(changedBlock);
+                    addedBlocks.addAll(changedBlock.getChildren());
+                }
+            }
+        }
+
+        // Matches found again, including the ones of blocks moved to another changed block, are not new
+        knownMatches = new IdentityHashMap<>();
+        for (ChildrenChange change : changes) {
+            for (Matcher match : change.previousChildren.matches) {
+                knownMatches.put(match.getMatchedBlock(0), match);
+            }
+        }
+
+        // Forget the removed children and scan the added ones, the moved children being kept as they are
+        for (Block removedBlock : removedBlocks) {
+            if (!addedBlocks.contains(removedBlock)) {
+                forget(removedBlock, addedBlocks);
+            }
+        }
+        for (Block addedBlock : addedBlocks) {
+            if (!removedBlocks.contains(addedBlock)) {
+                scan(addedBlock);
+            }
+        }
+
+        for (ChildrenChange change : changes) {
+            // Skip the changed blocks that were removed from the tree
+            if (scannedChildren.get(change.block) == change.previousChildren) {
+                update(change);
+            }
+        }
+        for (Block unscannedBlock : unscannedBlocks) {
+            // The block may be a descendant of an added block
+            if (!scannedChildren.containsKey(unscannedBlock)) {
+                scan(unscannedBlock);
+            }
+        }
+
+        List<Matcher> updateMatches = newMatches;
+        newMatches = new ArrayList<>();
+        knownMatches = Collections.emptyMap();
+
+        if (metrics != null) {
+            metrics.onScan(System.nanoTime() - start);
+        }
+
+        return updateMatches;
+    }
+
+    private boolean isInTree(Block block)
+    {
+        Block currentBlock = block;
+        while (currentBlock != root) {
+            Block parent = currentBlock.getParent();
+            if (parent == null || !containsChild(parent, currentBlock)) {
+                return false;
+            }
+            currentBlock = parent;
+        }
+
+        return true;
+    }
+
+    private static boolean containsChild(Block parent, Block block)
+    {
+        for (Block child : parent.getChildren()) {
+            if (child == block) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Scan a block that was added to the tree and its descendants, except the descendants that were moved from
+     * another part of the tree and whose children are thus already recorded.
+     */
+    private void scan(Block block)
+    {
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        remainingBlocks.push(block);
+        while (!remainingBlocks.isEmpty()) {
+            Block currentBlock = remainingBlocks.pop();
+            List<Block> children = currentBlock.getChildren();
+            if (!children.isEmpty()) {
+                scannedChildren.put(currentBlock, scan(children.toArray(new Block[0])));
+                for (Block child : children) {
+                    if (!scannedChildren.containsKey(child)) {
+                        remainingBlocks.push(child);
+                    }
+                }
+            }
+        }
+    }
+
+    private ScannedChildren scan(Block[] blocks)
+    {
+        List<Matcher> matches = new ArrayList<>();
+        new MatchFinder(block -> candidatePatterns, pattern.getAutomaton()).findAll(new BlockSiblings(blocks),
+            matches::add);
+
+        int[] matchStarts = new int[matches.size()];
+        for (int i = 0; i < matchStarts.length; i++) {
+            Matcher match = matches.get(i);
+            matchStarts[i] = match.getSiblingIndex() - pattern.getPrimaryBlockPatternPosition();
+            Matcher knownMatch = getKnownMatch(match);
+            if (knownMatch != null) {
+                matches.set(i, knownMatch);
+            } else {
+                newMatches.add(match);
+            }
+        }
+
+        return new ScannedChildren(blocks, matches, matchStarts);
+    }
+
+    /**
+     * @return the previous match of the same blocks as the given match, or null if the match was not known, in which
+     *     case it is reported as a new match
+     */
+    private Matcher getKnownMatch(Matcher match)
+    {
+        Matcher knownMatch = knownMatches.get(match.getMatchedBlock(0));
+        if (knownMatch == null || knownMatch.getMatchedBlockCount() != match.getMatchedBlockCount()) {
+            return null;
+        }
+        for (int i = 1; i < match.getMatchedBlockCount(); i++) {
+            if (knownMatch.getMatchedBlock(i) != match.getMatchedBlock(i)) {
+                return null;
+            }
+        }
+
+        return knownMatch;
+    }
+
+    /**
+     * Forget a block that was removed from the tree, and its descendants except the ones that were added back.
+     */
+    private void forget(Block block, Set<Block> addedBlocks)
+    {
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        remainingBlocks.push(block);
+        while (!remainingBlocks.isEmpty()) {
+            ScannedChildren children = scannedChildren.remove(remainingBlocks.pop());
+            if (children != null) {
+                for (Block child : children.blocks) {
+                    if (!addedBlocks.contains(child)) {
+                        remainingBlocks.push(child);
+                    }
+                }
+            }
+        }
+    }
+
+    private void update(ChildrenChange change)
+    {
+        if (change.blocks.length == 0) {
+            scannedChildren.remove(change.block);
+        } else if (pattern.isFixedLength()) {
+            scannedChildren.put(change.block,
+                rematch(change.previousChildren, change.blocks, change.prefixLength, change.suffixLength));
+        } else {
+            scannedChildren.put(change.block, scan(change.blocks));
+        }
+    }
+
+    /**
+     * Match the windows of a fixed-length pattern that overlap the changed children again. The matches are searched
+     * from left to right, skipping the matches that overlap the previous one, so the matches that end before the
+     * changed children are kept. After the changed children, the windows match as they did before the change, and the
+     * previous matches can be kept as soon as the search is in the same state as it was: when the next match can start
+     * at the same index.
+     */
+    private ScannedChildren rematch(ScannedChildren previousChildren, Block[] blocks, int prefixLength,
+        int suffixLength)
+    {
+        int length = pattern.getBlockPatterns().size();
+        int primaryPosition = pattern.getPrimaryBlockPatternPosition();
+        int shift = blocks.length - previousChildren.blocks.length;
+        int suffixStart = blocks.length - suffixLength;
+
+        List<Matcher> matches = new ArrayList<>();
+        List<Integer> matchStarts = new ArrayList<>();
+
+        // Keep the matches that end before the changed children
+        int previousMatch = 0;
+        int matchEnd = 0;
+        while (previousMatch < previousChildren.matches.size()
+            && previousChildren.matchStarts[previousMatch] + length <= prefixLength) {
+            matches.add(previousChildren.matches.get(previousMatch));
+            matchStarts.add(previousChildren.matchStarts[previousMatch]);
+            matchEnd = previousChildren.matchStarts[previousMatch] + length;
+            previousMatch++;
+        }
+
+        Matcher matcher = pattern.matcher(true);
+        int previousMatchEnd = 0;
+        for (int start = Math.max(matchEnd, prefixLength - length + 1); start + length <= blocks.length;) {
+            if (start >= suffixStart) {
+                // Skip the previous matches starting before this window, the last one telling where the next match
+                // could start
+                while (previousMatch < previousChildren.matches.size()
+                    && previousChildren.matchStarts[previousMatch] + shift < start) {
+                    previousMatchEnd = previousChildren.matchStarts[previousMatch] + shift + length;
+                    previousMatch++;
+                }
+                if (Math.max(matchEnd, start) == Math.max(previousMatchEnd, start)) {
+                    for (; previousMatch < previousChildren.matches.size(); previousMatch++) {
+                        matches.add(previousChildren.matches.get(previousMatch));
+                        matchStarts.add(previousChildren.matchStarts[previousMatch] + shift);
+                    }
+                    break;
+                }
+            }
+
+            if (matcher.reset(blocks, start + primaryPosition).matches()) {
+                Matcher knownMatch = getKnownMatch(matcher);
+                if (knownMatch != null) {
+                    matches.add(knownMatch);
+                } else {
+                    matches.add(matcher);
+                    newMatches.add(matcher);
+                    matcher = pattern.matcher(true);
+                }
+                matchStarts.add(start);
+                matchEnd = start + length;
+                start = matchEnd;
+            } else {
+                start++;
+            }
+        }
+
+        return new ScannedChildren(blocks, matches, matchStarts.stream().mapToInt(Integer::intValue).toArray());
+    }
+}
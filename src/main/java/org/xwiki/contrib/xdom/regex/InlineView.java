@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.LinkBlock;
+
+/**
+ * The inline content of a block seen as a flat sequence of blocks: the content of its transparent children, such as
+ * formatting and link blocks, is inlined in the sequence in place of these children, recursively. A phrase that is
+ * split by inline formatting, such as {@code a **b** c}, is then seen as the sequence of blocks of {@code a b c}.
+ * <p>
+ * The view only references the blocks of the tree, which are not copied, so the matches found in the view, see
+ * {@link Pattern#findAllFlattened(Block)}, are made of the original blocks and can be replaced in the tree with
+ * {@link Matcher#replace(Block)}. The view is a snapshot, that is not updated when the tree is modified.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class InlineView
+{
+    /**
+     * The blocks that are transparent by default: the {@link FormatBlock} and the {@link LinkBlock} (whose children
+     * are the label of the link).
+     */
+    public static final Predicate<Block> FORMATTING_AND_LINKS =
+        block -> block instanceof FormatBlock || block instanceof LinkBlock;
+
+    private final Block container;
+
+    private final Block[] blocks;
+
+    /**
+     * Flatten the content of the given block, the {@link #FORMATTING_AND_LINKS formatting and link blocks} being
+     * transparent.
+     *
+     * @param container the block whose content should be flattened
+     */
+    public InlineView(Block container)
+    {
+        this(container, FORMATTING_AND_LINKS);
+    }
+
+    /**
+     * Flatten the content of the given block.
+     *
+     * @param container the block whose content should be flattened
+     * @param isTransparent tells if the content of a block should be inlined in place of the block
+     */
+    public InlineView(Block container, Predicate<Block> isTransparent)
+    {
+        this.container = container;
+        this.blocks = flatten(container, isTransparent);
+    }
+
+    /**
+     * @param container the block whose content should be flattened
+     * @param isTransparent tells if the content of a block should be inlined in place of the block
+     * @return the descendants of the block that are not transparent and only have transparent ancestors up to the
+     *     block, in document order
+     */
+    static Block[] flatten(Block container, Predicate<Block> isTransparent)
+    {
+        List<Block> children = container.getChildren();
+        boolean hasTransparentChildren = false;
+        for (int i = 0; i < children.size() && !hasTransparentChildren; i++) {
+            hasTransparentChildren = isTransparent.test(children.get(i));
+        }
+        if (!hasTransparentChildren) {
+            // Nothing to flatten
+            return children.toArray(new Block[0]);
+        }
+
+        List<Block> flattenedBlocks = new ArrayList<>();
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            remainingBlocks.push(children.get(i));
+        }
+        while (!remainingBlocks.isEmpty()) {
+            Block block = remainingBlocks.pop();
+            if (isTransparent.test(block)) {
+                List<Block> blockChildren = block.getChildren();
+                for (int i = blockChildren.size() - 1; i >= 0; i--) {
+                    remainingBlocks.push(blockChildren.get(i));
+                }
+            } else {
+                flattenedBlocks.add(block);
+            }
+        }
+
+        return flattenedBlocks.toArray(new Block[0]);
+    }
+
+    /**
+     * @return the block whose content is flattened
+     */
+    public Block getContainer()
+    {
+        return container;
+    }
+
+    /**
+     * @return the unmodifiable flattened sequence of blocks
+     */
+    public List<Block> getBlocks()
+    {
+        return Collections.unmodifiableList(Arrays.asList(blocks));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+/**
+ * Installs the {@link MatchingMetrics} receiving the events of the matching hot path. Instrumentation is disabled by
+ * default: no event is created and the hot path only checks a field that is null, so that instrumentation can be
+ * enabled and disabled at runtime in production.
+ * <p>
+ * A scan reads the installed metrics when it starts and keeps reporting to them until it ends.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class Instrumentation
+{
+    private static volatile MatchingMetrics metrics;
+
+    private Instrumentation()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param newMetrics the metrics receiving the matching events, or null to disable instrumentation
+     */
+    public static void setMetrics(MatchingMetrics newMetrics)
+    {
+        metrics = newMetrics;
+    }
+
+    /**
+     * @return the metrics receiving the matching events, or null if instrumentation is disabled
+     */
+    public static MatchingMetrics getMetrics()
+    {
+        return metrics;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Finds the matches of candidate patterns anchored on a block of a {@link BlockSiblings}, skipping the matches that
+ * overlap a previous match of the same pattern in these siblings. When a complete {@link BlockAutomaton} is available,
+ * all the matches of a list of siblings are found in a single pass the first time one of its blocks is scanned, and
+ * then reported block by block in the same order as the anchored matching. A finder is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class MatchFinder
+{
+    private final Function<Block, List<Pattern>> candidatePatterns;
+
+    private final BlockAutomaton automaton;
+
+    /**
+     * True if the matchers of the matches are reused for the next matches instead of being handed over.
+     */
+    private final boolean isReusingMatchers;
+
+    private final Map<Pattern, Matcher> reusableMatchers = new IdentityHashMap<>();
+
+    private final MatchingMetrics metrics = Instrumentation.getMetrics();
+
+    /**
+     * The results of the word regular expressions evaluated by the matchers of this finder, so that each distinct
+     * word is tested at most once against each distinct regular expression.
+     */
+    private final WordMatchCache wordMatchCache = new WordMatchCache();
+
+    /**
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     */
+    MatchFinder(Function<Block, List<Pattern>> candidatePatterns)
+    {
+        this(candidatePatterns, null);
+    }
+
+    /**
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     * @param automaton the automaton recognizing all the candidate patterns, or null to only use anchored matching
+     */
+    MatchFinder(Function<Block, List<Pattern>> candidatePatterns, BlockAutomaton automaton)
+    {
+        this(candidatePatterns, automaton, false);
+    }
+
+    /**
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     * @param automaton the automaton recognizing all the candidate patterns, or null to only use anchored matching
+     * @param isReusingMatchers true if the matcher given to the consumer for a match of a fixed-length pattern should
+     *     be reused for the next matches of the pattern, in which case it must not be kept by the consumer
+     */
+    MatchFinder(Function<Block, List<Pattern>> candidatePatterns, BlockAutomaton automaton, boolean isReusingMatchers)
+    {
+        this.candidatePatterns = candidatePatterns;
+        this.automaton = (automaton != null && automaton.isComplete()) ? automaton : null;
+        this.isReusingMatchers = isReusingMatchers;
+    }
+
+    /**
+     * Try the candidate patterns on the current block of the given siblings.
+     *
+     * @param siblings the siblings being scanned
+     * @param consumer receives the matches
+     */
+    void find(BlockSiblings siblings, Consumer<Matcher> consumer)
+    {
+        if (automaton != null && isReusingMatchers) {
+            findReusingMatchers(siblings, consumer);
+
+            return;
+        } else if (automaton != null) {
+            if (siblings.matches == null) {
+                siblings.matches = findAll(siblings.blocks);
+            }
+            while (siblings.nextMatch < siblings.matches.size()
+                && siblings.matches.get(siblings.nextMatch).getSiblingIndex() == siblings.index) {
+                consumer.accept(siblings.matches.get(siblings.nextMatch++));
+            }
+
+            return;
+        }
+
+        Block block = siblings.blocks[siblings.index];
+        for (Pattern pattern : candidatePatterns.apply(block)) {
+            if (metrics != null) {
+                metrics.onCandidate();
+            }
+            if (pattern.getPrimaryBlockPattern().accepts(block)) {
+                if (metrics != null) {
+                    metrics.onPrimaryHit();
+                }
+                find(pattern, siblings, consumer);
+            }
+        }
+    }
+
+    /**
+     * Try the candidate patterns on every block of the given siblings.
+     *
+     * @param siblings the siblings to scan
+     * @param consumer receives the matches
+     */
+    void findAll(BlockSiblings siblings, Consumer<Matcher> consumer)
+    {
+        for (siblings.index = 0; siblings.index < siblings.blocks.length; siblings.index++) {
+            find(siblings, consumer);
+        }
+    }
+
+    private void find(Pattern pattern, BlockSiblings siblings, Consumer<Matcher> consumer)
+    {
+        if (!pattern.isFixedLength()) {
+            findVariableLength(pattern, siblings, consumer);
+            return;
+        }
+
+        int matchStart = siblings.index - pattern.getPrimaryBlockPatternPosition();
+        if (siblings.matchEnds != null && matchStart < siblings.matchEnds.getOrDefault(pattern, 0)) {
+            // Overlaps the previous match of the pattern
+            return;
+        }
+
+        Matcher matcher =
+            reusableMatchers.computeIfAbsent(pattern, this::createMatcher).reset(siblings.blocks, siblings.index);
+        if (matcher.matches()) {
+            if (!isReusingMatchers) {
+                // The matcher is handed over, so it can't be reused anymore
+                reusableMatchers.remove(pattern);
+                handOver(matcher);
+            }
+            if (siblings.matchEnds == null) {
+                siblings.matchEnds = new IdentityHashMap<>();
+            }
+            siblings.matchEnds.put(pattern, matchStart + pattern.getBlockPatterns().size());
+            consumer.accept(matcher);
+        }
+    }
+
+    /**
+     * Report the match of a pattern that is not fixed-length if it starts at the current block. The matches are found
+     * in a single pass over the siblings the first time the pattern is tried on them, and kept until the scan reaches
+     * their first block, so that the siblings are not evaluated again for every candidate block.
+     */
+    private void findVariableLength(Pattern pattern, BlockSiblings siblings, Consumer<Matcher> consumer)
+    {
+        if (siblings.nextMatches == null) {
+            siblings.nextMatches = new IdentityHashMap<>();
+        }
+
+        Deque<Matcher> nextMatches = siblings.nextMatches.get(pattern);
+        if (nextMatches == null) {
+            // No match can start before the first block accepted by the primary block pattern
+            nextMatches = new ArrayDeque<>(createMatcher(pattern).findAll(siblings.blocks, siblings.index));
+            siblings.nextMatches.put(pattern, nextMatches);
+        }
+
+        if (!nextMatches.isEmpty() && nextMatches.peek().getSiblingIndex() == siblings.index) {
+            consumer.accept(nextMatches.poll());
+        }
+    }
+
+    /**
+     * Report the matches anchored on the current block. The windows recognized by the automaton are found by scanning
+     * the siblings the first time one of them is scanned, but they are only evaluated when the scan reaches the block
+     * they are anchored on, so that each match is evaluated once and a single matcher is used for all the matches of
+     * a pattern.
+     */
+    private void findReusingMatchers(BlockSiblings siblings, Consumer<Matcher> consumer)
+    {
+        if (siblings.matchPositions == null) {
+            siblings.matchPositions = findWindows(siblings.blocks);
+            siblings.matchEnds = new IdentityHashMap<>();
+        }
+
+        while (siblings.nextMatch < siblings.matchPositions.length
+            && (int) (siblings.matchPositions[siblings.nextMatch] >>> Integer.SIZE) == siblings.index) {
+            Pattern pattern = automaton.getPatterns().get((int) siblings.matchPositions[siblings.nextMatch++]);
+            int matchStart = siblings.index - pattern.getPrimaryBlockPatternPosition();
+            // The windows of a pattern are evaluated in order, so a match can only overlap the previous one
+            if (matchStart >= siblings.matchEnds.getOrDefault(pattern, 0)) {
+                if (metrics != null) {
+                    metrics.onPrimaryHit();
+                }
+                Matcher matcher =
+                    reusableMatchers.computeIfAbsent(pattern, this::createMatcher).reset(siblings.blocks, siblings.index);
+                if (matcher.matches()) {
+                    siblings.matchEnds.put(pattern, matchStart + pattern.getBlockPatterns().size());
+                    consumer.accept(matcher);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan the given siblings with the automaton, without evaluating the windows it recognizes.
+     *
+     * @return the positions of the windows: the index of the block a window is anchored on in the high 32 bits, and
+     *     the index of its pattern in the low 32 bits, in increasing order
+     */
+    private long[] findWindows(Block[] blocks)
+    {
+        List<Pattern> patterns = automaton.getPatterns();
+        LongStream.Builder windowPositions = LongStream.builder();
+
+        int state = automaton.getInitialState();
+        for (int i = 0; i < blocks.length; i++) {
+            if (metrics != null) {
+                metrics.onCandidate();
+            }
+            state = automaton.getNextState(state, blocks[i]);
+            for (int patternIndex : automaton.getCompletePatterns(state)) {
+                Pattern pattern = patterns.get(patternIndex);
+                int anchor = i + 1 - pattern.getBlockPatterns().size() + pattern.getPrimaryBlockPatternPosition();
+                windowPositions.add(((long) anchor << Integer.SIZE) | patternIndex);
+            }
+        }
+
+        return windowPositions.build().sorted().toArray();
+    }
+
+    /**
+     * Scan the given siblings with the automaton and evaluate the word regexes of the windows recognized by it.
+     *
+     * @return the matches, in the order of the index of the block they are anchored on and then of the patterns
+     */
+    private List<Matcher> findAll(Block[] blocks)
+    {
+        List<Matcher> matches = new ArrayList<>();
+        findAll(blocks, matcher -> {
+            reusableMatchers.remove(matcher.getPattern());
+            matches.add(handOver(matcher));
+        });
+
+        // The windows are recognized by their last block, but the patterns may have different lengths
+        matches.sort(Comparator.comparingInt(Matcher::getSiblingIndex)
+            .thenComparingInt(matcher -> automaton.getPatternIndex(matcher.getPattern())));
+
+        return matches;
+    }
+
+    /**
+     * Scan the given siblings with the automaton and evaluate the word regexes of the windows recognized by it.
+     *
+     * @param blocks the siblings to scan
+     * @param matchConsumer receives the matcher of each match, which is still the reusable matcher of its pattern
+     */
+    private void findAll(Block[] blocks, Consumer<Matcher> matchConsumer)
+    {
+        List<Pattern> patterns = automaton.getPatterns();
+        int[] matchEnds = new int[patterns.size()];
+
+        int state = automaton.getInitialState();
+        for (int i = 0; i < blocks.length; i++) {
+            if (metrics != null) {
+                metrics.onCandidate();
+            }
+            state = automaton.getNextState(state, blocks[i]);
+            for (int patternIndex : automaton.getCompletePatterns(state)) {
+                Pattern pattern = patterns.get(patternIndex);
+                int matchStart = i + 1 - pattern.getBlockPatterns().size();
+                // The windows of a pattern are recognized in order, so a match can only overlap the previous one
+                if (matchStart >= matchEnds[patternIndex]) {
+                    if (metrics != null) {
+                        metrics.onPrimaryHit();
+                    }
+                    Matcher matcher = reusableMatchers.computeIfAbsent(pattern, this::createMatcher)
+                        .reset(blocks, matchStart + pattern.getPrimaryBlockPatternPosition());
+                    if (matcher.matches()) {
+                        matchEnds[patternIndex] = i + 1;
+                        matchConsumer.accept(matcher);
+                    }
+                }
+            }
+        }
+    }
+
+    private Matcher createMatcher(Pattern pattern)
+    {
+        return pattern.matcher(true).setWordMatchCache(wordMatchCache);
+    }
+
+    /**
+     * Detach a matcher that is kept by the consumer from the cache of this finder, which is not thread-safe.
+     */
+    private Matcher handOver(Matcher matcher)
+    {
+        return matcher.setWordMatchCache(null);
+    }
+}
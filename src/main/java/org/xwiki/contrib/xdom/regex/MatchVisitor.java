@@ -0,0 +1,41 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+/**
+ * Receives the matches of a pattern one after the other, see {@link Pattern#scan(org.xwiki.rendering.block.Block,
+ * MatchVisitor)}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@FunctionalInterface
+public interface MatchVisitor
+{
+    /**
+     * Visit a match. The given matcher may be reset to the next match once this method returns, so it must not be
+     * kept: the data needed from the match, such as its matched string or its matched blocks, should be read before
+     * returning.
+     *
+     * @param matcher the match
+     * @return true if the scan should go on, false if it should stop
+     */
+    boolean visit(Matcher matcher);
+}
@@ -19,23 +19,32 @@
  */
 package org.xwiki.contrib.xdom.regex;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.xwiki.contrib.xdom.regex.internal.BlockMatcher;
 import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.ChildrenReplacer;
+import org.xwiki.contrib.xdom.regex.internal.InlineReplacer;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockMatcher;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.SpecialSymbolBlock;
 import org.xwiki.rendering.block.WordBlock;
 
 /**
  * Matcher for {@link Pattern}.
+ * <p>
+ * The blocks evaluated during the match are stored by position in the pattern. Only the match status of each block
+ * is computed while matching: the {@link BlockMatcher} of a block (holding, for example, the regex groups of a word)
+ * is only created when asked for.
+ * <p>
+ * A matcher obtained through {@link Pattern#matcher()} can be reused with {@link #reset(Block)}, in which case its
+ * internal buffers are recycled from one match to the other. A matcher is not thread-safe.
  *
  * @version $Id$
  * @since 1.0
@@ -46,19 +55,77 @@ public class Matcher
 
     private Block initialBlock;
 
+    /**
+     * When not null, a snapshot of the initial block and its siblings that is used instead of walking the siblings.
+     */
+    private Block[] siblings;
+
+    private int siblingIndex;
+
+    /**
+     * The index following the last sibling that can be matched, in {@link #siblings}.
+     */
+    private int siblingsEnd;
+
     private boolean stopOnNoMatch;
 
     private boolean matches;
 
-    private LinkedList<Pair<Block, BlockMatcher>> matchedBlockResults;
+    /**
+     * The evaluated blocks, indexed by their position in the pattern.
+     */
+    private Block[] blocks;
 
-    private String matchedString = StringUtils.EMPTY;
+    /**
+     * The lazily created match results of the evaluated blocks, indexed by their position in the pattern.
+     */
+    private BlockMatcher[] blockMatchers;
 
-    private enum InsertionStrategy
-    {
-        FIRST,
-        LAST
-    }
+    /**
+     * The position of the first evaluated block in the pattern (inclusive).
+     */
+    private int startIndex;
+
+    /**
+     * The position of the last evaluated block in the pattern (exclusive).
+     */
+    private int endIndex;
+
+    /**
+     * The regex matchers reused for the word block patterns, indexed by their position in the pattern.
+     */
+    private java.util.regex.Matcher[] regexMatchers;
+
+    /**
+     * When the pattern is not fixed-length, the block pattern that matched each evaluated block.
+     */
+    private List<BlockPattern<? extends Block>> matchedBlockPatterns;
+
+    /**
+     * The number of blocks evaluated by the last match.
+     */
+    private int checkedBlocks;
+
+    /**
+     * The string of the matched blocks, computed the first time it's asked for.
+     */
+    private String matchedString;
+
+    /**
+     * The matched blocks, copied the first time they're asked for.
+     */
+    private List<Block> matchedBlocks;
+
+    /**
+     * The results of the word regular expressions shared by the matchers of a scan, or null if they are not cached.
+     */
+    private WordMatchCache wordMatchCache;
+
+    /**
+     * The state of the virtual machine running the program of the pattern, when it's not fixed-length, created the
+     * first time it's needed.
+     */
+    private BlockProgram.Execution execution;
 
     /**
      * Build a new matcher.
@@ -80,13 +147,156 @@ public class Matcher
      *     is useful to save time when checking if an expression matches
      */
     public Matcher(Pattern pattern, Block block, boolean stopOnNoMatch)
+    {
+        this(pattern, stopOnNoMatch);
+
+        reset(block);
+    }
+
+    /**
+     * Build a new matcher that is not bound to any block yet, see {@link #reset(Block)}.
+     *
+     * @param pattern the pattern to use as a reference
+     * @param stopOnNoMatch if true, the match will stop directly as soon as one of the blocks doesn't match
+     * @since 1.1
+     */
+    Matcher(Pattern pattern, boolean stopOnNoMatch)
     {
         this.pattern = pattern;
-        this.initialBlock = block;
         this.stopOnNoMatch = stopOnNoMatch;
-        this.matchedBlockResults = new LinkedList<>();
+        this.blocks = new Block[pattern.getMinLength()];
+        this.blockMatchers = new BlockMatcher[this.blocks.length];
+        this.regexMatchers = new java.util.regex.Matcher[this.blocks.length];
+    }
+
+    /**
+     * Share the results of the word regular expressions with the other matchers of a scan.
+     *
+     * @param wordMatchCache the cache of the scan, or null to evaluate every word
+     * @return this matcher
+     * @since 1.1
+     */
+    Matcher setWordMatchCache(WordMatchCache wordMatchCache)
+    {
+        this.wordMatchCache = wordMatchCache;
+
+        return this;
+    }
+
+    /**
+     * Match the pattern again, starting from the given block. The previous match results are discarded.
+     *
+     * @param block the block that should be used for starting the match
+     * @return this matcher
+     * @since 1.1
+     */
+    public Matcher reset(Block block)
+    {
+        return reset(null, 0, 0, block);
+    }
+
+    /**
+     * Match the pattern again, starting from the block at the given index in an array holding this block and its
+     * siblings. The array is used instead of walking through the block siblings.
+     *
+     * @param siblings the children of a block
+     * @param index the index of the block that should be used for starting the match
+     * @return this matcher
+     * @since 1.1
+     */
+    Matcher reset(Block[] siblings, int index)
+    {
+        return reset(siblings, index, siblings.length);
+    }
+
+    /**
+     * Match the pattern again, starting from the block at the given index in an array holding this block and its
+     * siblings, ignoring the blocks of the array from the given end index.
+     *
+     * @param siblings the children of a block
+     * @param index the index of the block that should be used for starting the match
+     * @param end the index following the last block that can be matched
+     * @return this matcher
+     * @since 1.1
+     */
+    Matcher reset(Block[] siblings, int index, int end)
+    {
+        return reset(siblings, index, end, siblings[index]);
+    }
+
+    /**
+     * Find all the matches of a pattern that is not {@link Pattern#isFixedLength() fixed-length} in an array of
+     * siblings, starting from the block at the given index, each match being the leftmost one following the previous
+     * match. This is done in a single pass over the siblings, whereas calling {@link #reset(Block[], int)} on every
+     * block would evaluate the blocks following each of them again.
+     *
+     * @param siblings the children of a block
+     * @param from the index of the first block where the first match may start
+     * @return a new matcher for each match, in order, whose {@link #getSiblingIndex()} is the index of the first
+     *     matched block
+     * @since 1.1
+     */
+    List<Matcher> findAll(Block[] siblings, int from)
+    {
+        List<Matcher> matchers = new ArrayList<>();
+        pattern.getProgram().searchAll(getExecution(), siblings, from, siblings.length, wordMatchCache, match -> {
+            Matcher matcher = new Matcher(pattern, stopOnNoMatch);
+            matcher.siblings = siblings;
+            matcher.siblingsEnd = siblings.length;
+            matcher.setProgramMatch(match, siblings);
+            matcher.report();
+            matchers.add(matcher);
+        });
+
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null && matchers.isEmpty()) {
+            metrics.onMismatch(siblings.length - from);
+        }
+
+        return matchers;
+    }
+
+    /**
+     * @return the state of the virtual machine running the program of the pattern, reused for all the searches
+     */
+    private BlockProgram.Execution getExecution()
+    {
+        if (execution == null) {
+            execution = pattern.getProgram().createExecution();
+        }
+
+        return execution;
+    }
+
+    private Matcher reset(Block[] siblings, int index, int end, Block block)
+    {
+        clear();
+        this.siblings = siblings;
+        this.siblingIndex = index;
+        this.siblingsEnd = end;
+        this.initialBlock = block;
 
         computeMatch();
+        report();
+
+        return this;
+    }
+
+    private void clear()
+    {
+        Arrays.fill(blocks, startIndex, endIndex, null);
+        Arrays.fill(blockMatchers, startIndex, endIndex, null);
+        matchedString = null;
+        matchedBlocks = null;
+    }
+
+    /**
+     * @return the pattern used by this matcher
+     * @since 1.1
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
     }
 
     /**
@@ -102,14 +312,18 @@ public class Matcher
      */
     public String getMatchedString()
     {
-        if (matchedString.equals(StringUtils.EMPTY)) {
-            StringBuilder sb = new StringBuilder();
+        if (matchedString == null) {
+            int length = 0;
+            for (int i = startIndex; i < endIndex; i++) {
+                length += (blocks[i] instanceof WordBlock) ? ((WordBlock) blocks[i]).getWord().length() : 1;
+            }
 
-            for (Pair<Block, BlockMatcher> pair : matchedBlockResults) {
-                if (pair.getLeft() instanceof WordBlock) {
-                    sb.append(((WordBlock) pair.getLeft()).getWord());
-                } else if (pair.getLeft() instanceof SpecialSymbolBlock) {
-                    sb.append(((SpecialSymbolBlock) pair.getLeft()).getSymbol());
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = startIndex; i < endIndex; i++) {
+                if (blocks[i] instanceof WordBlock) {
+                    sb.append(((WordBlock) blocks[i]).getWord());
+                } else if (blocks[i] instanceof SpecialSymbolBlock) {
+                    sb.append(((SpecialSymbolBlock) blocks[i]).getSymbol());
                 } else {
                     sb.append(' ');
                 }
@@ -126,19 +340,61 @@ public class Matcher
      */
     public List<Block> getMatchedBlocks()
     {
-        return Collections.unmodifiableList(
-            matchedBlockResults.stream().map(Pair::getLeft).collect(Collectors.toList()));
+        if (matchedBlocks == null) {
+            matchedBlocks =
+                Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(blocks, startIndex, endIndex)));
+        }
+
+        return matchedBlocks;
     }
 
     /**
      * @param block the block for which we should get the match result
-     * @return the match result, or null if no result exists
+     * @return the match result, or null if the block is not one of the matched blocks (blocks are compared by
+     *     identity, since different blocks may be equal)
      */
     public BlockMatcher getMatchResult(Block block)
     {
-        Optional<BlockMatcher> match =
-            matchedBlockResults.stream().filter(e -> e.getLeft().equals(block)).map(Pair::getRight).findFirst();
-        return match.orElse(null);
+        for (int i = startIndex; i < endIndex; i++) {
+            if (blocks[i] == block) {
+                return getBlockMatcher(i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the match result of a matched block without looking for the block. The match result is created the first
+     * time it's asked for, and then kept until the matcher is reset.
+     *
+     * @param index the index of a block in the matched blocks, which is its position in the pattern when a
+     *     {@link Pattern#isFixedLength() fixed-length} pattern matches
+     * @return the match result of the block
+     * @since 1.1
+     */
+    public BlockMatcher getMatchResult(int index)
+    {
+        return getBlockMatcher(startIndex + checkIndex(index));
+    }
+
+    /**
+     * Get a group captured by the regular expression of a word, as {@link java.util.regex.Matcher#group(int)} would.
+     *
+     * @param index the index of a block in the matched blocks, see {@link #getMatchResult(int)}
+     * @param group the index of the group in the regular expression of the word, 0 for the whole word
+     * @return the captured group, or null if the block is not a word matched by a regular expression or if the group
+     *     didn't capture anything
+     * @since 1.1
+     */
+    public String getGroup(int index, int group)
+    {
+        BlockMatcher blockMatcher = getMatchResult(index);
+        if (blockMatcher instanceof WordBlockMatcher && blockMatcher.matches()) {
+            return ((WordBlockMatcher) blockMatcher).getMatcher().group(group);
+        }
+
+        return null;
     }
 
     /**
@@ -146,76 +402,281 @@ public class Matcher
      */
     public List<Pair<Block, BlockMatcher>> getMatchedBlockResults()
     {
-        return Collections.unmodifiableList(matchedBlockResults);
+        List<Pair<Block, BlockMatcher>> results = new ArrayList<>(endIndex - startIndex);
+        for (int i = startIndex; i < endIndex; i++) {
+            results.add(new ImmutablePair<>(blocks[i], getBlockMatcher(i)));
+        }
+
+        return Collections.unmodifiableList(results);
     }
 
     /**
-     * Replace matched blocks with a replacement block.
+     * Replace matched blocks with a replacement block. When the matched blocks don't have the same parent, which
+     * happens with the matches found in an {@link InlineView}, the replacement is inserted in their closest common
+     * ancestor and the blocks in between, such as formatting blocks, are split.
+     *
      * @param replacement  block to use as replacement
      */
     public void replace(Block replacement)
     {
-        List<Block> matchedBlocks = getMatchedBlocks();
-        // We assume that every block has the same parent
-        Block parent = matchedBlocks.get(0).getParent();
-        parent.replaceChild(replacement, matchedBlocks.get(0));
-        for (int i = 1; i < matchedBlocks.size(); i++) {
-            parent.removeBlock(matchedBlocks.get(i));
+        replaceBlocks(replacement, getMatchedBlockParents());
+
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null) {
+            metrics.onReplace(1);
         }
     }
 
-    private void computeMatch()
+    /**
+     * @return the parent of each matched block, which should be read before the replacement block is created since
+     *     creating it may move the matched blocks to the replacement block
+     */
+    Block[] getMatchedBlockParents()
+    {
+        Block[] parents = new Block[endIndex - startIndex];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = blocks[startIndex + i].getParent();
+        }
+
+        return parents;
+    }
+
+    /**
+     * Replace matched blocks with a replacement block, see {@link #replace(Block)}.
+     *
+     * @param replacement block to use as replacement
+     * @param parents the parents of the matched blocks before the replacement block was created, see
+     *     {@link #getMatchedBlockParents()}
+     */
+    void replaceBlocks(Block replacement, Block[] parents)
     {
-        // First match against the first matcher block
-        matches = checkMatch(initialBlock, pattern.getPrimaryBlockPattern(), InsertionStrategy.FIRST);
+        Block parent = parents[0];
+        boolean isSameParent = true;
+        for (int i = 1; i < parents.length && isSameParent; i++) {
+            isSameParent = parents[i] == parent;
+        }
 
-        if (matches || !stopOnNoMatch) {
-            handleLeftHandMatch();
-            handleRightHandMatch();
+        if (isSameParent) {
+            ChildrenReplacer replacer = new ChildrenReplacer(parent);
+            replacer.replace(blocks[startIndex], endIndex - startIndex, replacement);
+            replacer.apply();
+        } else {
+            InlineReplacer.replace(blocks[startIndex], parent, blocks[endIndex - 1], parents[parents.length - 1],
+                replacement);
         }
     }
 
-    private void handleLeftHandMatch()
+    /**
+     * @param index the index of a block in the matched blocks, see {@link #getMatchResult(int)}
+     * @return the matched block at the given index
+     * @since 1.1
+     */
+    public Block getMatchedBlock(int index)
+    {
+        return blocks[startIndex + checkIndex(index)];
+    }
+
+    /**
+     * @return the number of matched blocks
+     * @since 1.1
+     */
+    public int getMatchedBlockCount()
     {
-        // Go back to the start of the expression
-        Block currentBlock = initialBlock.getPreviousSibling();
-        for (int i = pattern.getPrimaryBlockPatternPosition() - 1; i >= 0 && (matches || !stopOnNoMatch); i--) {
-            if (currentBlock != null) {
-                matches &= checkMatch(currentBlock, pattern.getBlockPatterns().get(i), InsertionStrategy.FIRST);
-                currentBlock = currentBlock.getPreviousSibling();
+        return endIndex - startIndex;
+    }
+
+    private int checkIndex(int index)
+    {
+        if (index < 0 || index >= endIndex - startIndex) {
+            throw new IndexOutOfBoundsException(
+                String.format("Index [%d] out of the [%d] matched blocks", index, endIndex - startIndex));
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the index of the block the match started from, in the siblings given to {@link #reset(Block[], int)}
+     */
+    int getSiblingIndex()
+    {
+        return siblingIndex;
+    }
+
+    private BlockMatcher getBlockMatcher(int index)
+    {
+        if (blockMatchers[index] == null) {
+            BlockPattern<? extends Block> blockPattern = (matchedBlockPatterns != null)
+                ? matchedBlockPatterns.get(index) : pattern.getBlockPatterns().get(index);
+            blockMatchers[index] = blockPattern.matches(blocks[index]);
+        }
+
+        return blockMatchers[index];
+    }
+
+    private void computeMatch()
+    {
+        if (pattern.getProgram() != null) {
+            computeProgramMatch();
+        } else if (stopOnNoMatch) {
+            computeFailFastMatch();
+        } else {
+            computeFullMatch();
+        }
+    }
+
+    private void report()
+    {
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null) {
+            if (matches) {
+                metrics.onMatch(endIndex - startIndex);
             } else {
-                matches = false;
+                metrics.onMismatch(checkedBlocks);
             }
         }
     }
 
-    private void handleRightHandMatch()
+    private void computeFullMatch()
     {
-        // Now, go to the end of the expression
-        Block currentBlock = initialBlock.getNextSibling();
-        for (int i = pattern.getPrimaryBlockPatternPosition() + 1;
-            i < pattern.getBlockPatterns().size() && (matches || !stopOnNoMatch); i++) {
-            if (currentBlock != null) {
-                matches &= checkMatch(currentBlock, pattern.getBlockPatterns().get(i), InsertionStrategy.LAST);
+        matches = collectBlocks();
+        checkedBlocks = endIndex - startIndex;
+
+        for (int i = startIndex; i < endIndex; i++) {
+            matches &= checkMatch(i);
+        }
+    }
+
+    /**
+     * Match the blocks by increasing cost, stopping as soon as a block doesn't match: first make sure that there are
+     * enough siblings around the initial block, then run the structural checks (block types, symbols, word prefixes)
+     * on every block and only then evaluate the costly checks such as word regular expressions.
+     */
+    private void computeFailFastMatch()
+    {
+        matches = collectBlocks();
+        checkedBlocks = 0;
+
+        List<BlockPattern<? extends Block>> blockPatterns = pattern.getBlockPatterns();
+        for (int i = 0; i < blocks.length && matches; i++) {
+            BlockPattern<? extends Block> blockPattern = blockPatterns.get(i);
+            matches = blockPattern.isStructural() ? blockPattern.test(blocks[i]) : blockPattern.accepts(blocks[i]);
+            checkedBlocks++;
+        }
+
+        for (int i = 0; i < blocks.length && matches; i++) {
+            matches = blockPatterns.get(i).isStructural() || checkMatch(i);
+        }
+    }
+
+    /**
+     * Run the program of a pattern that is not fixed-length on the initial block and the following siblings.
+     */
+    private void computeProgramMatch()
+    {
+        Block[] searchedBlocks = siblings;
+        int from = siblingIndex;
+        int end = siblingsEnd;
+        if (searchedBlocks == null) {
+            // The program needs an indexed access to the blocks
+            int maxLength = pattern.getMaxLength();
+            List<Block> followingBlocks = new ArrayList<>();
+            Block currentBlock = initialBlock;
+            while (currentBlock != null && (maxLength < 0 || followingBlocks.size() < maxLength)) {
+                followingBlocks.add(currentBlock);
                 currentBlock = currentBlock.getNextSibling();
-            } else {
-                matches = false;
             }
+            searchedBlocks = followingBlocks.toArray(new Block[0]);
+            from = 0;
+            end = searchedBlocks.length;
         }
+
+        setProgramMatch(pattern.getProgram().search(getExecution(), searchedBlocks, from, end, true, wordMatchCache),
+            searchedBlocks);
     }
 
-    private boolean checkMatch(Block block, BlockPattern blockPattern, InsertionStrategy insertionStrategy)
+    private void setProgramMatch(BlockProgram.Match match, Block[] searchedBlocks)
     {
-        BlockMatcher result = blockPattern.matches(block);
+        checkedBlocks = match.getSearchedBlocks();
+        if (!match.isMatch()) {
+            matches = false;
+            matchedBlockPatterns = null;
+            startIndex = 0;
+            endIndex = 0;
+        } else {
+            int length = match.getBlockPatterns().size();
+            if (blocks.length < length) {
+                blocks = new Block[length];
+                blockMatchers = new BlockMatcher[length];
+            }
+            System.arraycopy(searchedBlocks, match.getStart(), blocks, 0, length);
 
-        Pair<Block, BlockMatcher> pair = new ImmutablePair<>(block, result);
+            matches = true;
+            matchedBlockPatterns = match.getBlockPatterns();
+            startIndex = 0;
+            endIndex = length;
+            if (siblings != null) {
+                siblingIndex = match.getStart();
+            }
+        }
+    }
 
-        if (insertionStrategy.equals(InsertionStrategy.FIRST)) {
-            matchedBlockResults.addFirst(pair);
+    /**
+     * Fill the block array with the initial block and its siblings, without evaluating them.
+     *
+     * @return false if the initial block doesn't have enough siblings for the pattern to match
+     */
+    private boolean collectBlocks()
+    {
+        if (siblings != null) {
+            collectIndexedBlocks();
         } else {
-            matchedBlockResults.addLast(pair);
+            collectLinkedBlocks();
         }
 
-        return result.matches();
+        return startIndex == 0 && endIndex == blocks.length;
+    }
+
+    private void collectIndexedBlocks()
+    {
+        // Position in the siblings of the block matching the first block pattern
+        int offset = siblingIndex - pattern.getPrimaryBlockPatternPosition();
+        startIndex = Math.max(0, -offset);
+        endIndex = Math.min(blocks.length, siblingsEnd - offset);
+        System.arraycopy(siblings, offset + startIndex, blocks, startIndex, endIndex - startIndex);
+    }
+
+    private void collectLinkedBlocks()
+    {
+        int primaryPosition = pattern.getPrimaryBlockPatternPosition();
+        blocks[primaryPosition] = initialBlock;
+        startIndex = primaryPosition;
+        endIndex = primaryPosition + 1;
+
+        Block currentBlock = initialBlock.getPreviousSibling();
+        for (; startIndex > 0 && currentBlock != null; currentBlock = currentBlock.getPreviousSibling()) {
+            blocks[--startIndex] = currentBlock;
+        }
+
+        currentBlock = initialBlock.getNextSibling();
+        for (; endIndex < blocks.length && currentBlock != null; currentBlock = currentBlock.getNextSibling()) {
+            blocks[endIndex++] = currentBlock;
+        }
+    }
+
+    private boolean checkMatch(int index)
+    {
+        Block block = blocks[index];
+        BlockPattern<? extends Block> blockPattern = pattern.getBlockPatterns().get(index);
+        if (blockPattern instanceof WordBlockPattern && !blockPattern.isStructural()) {
+            WordBlockPattern wordBlockPattern = (WordBlockPattern) blockPattern;
+            if (regexMatchers[index] == null) {
+                regexMatchers[index] = wordBlockPattern.createRegexMatcher();
+            }
+            return (wordMatchCache != null) ? wordMatchCache.test(wordBlockPattern, block, regexMatchers[index])
+                : wordBlockPattern.test(block, regexMatchers[index]);
+        } else {
+            return blockPattern.test(block);
+        }
     }
 }
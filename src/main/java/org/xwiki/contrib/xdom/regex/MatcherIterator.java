@@ -0,0 +1,163 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Lazily iterates over the non-overlapping matches of one or several {@link Pattern} in a block tree. The tree is
+ * traversed only once, in document order, and a {@link Matcher} is only evaluated for blocks accepted by the primary
+ * block pattern of a candidate pattern.
+ * <p>
+ * The children of each block are copied to an array once, and the matchers work on index windows of this array
+ * instead of walking through the block siblings.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class MatcherIterator implements Iterator<Matcher>
+{
+    private static final Block[] NO_BLOCKS = new Block[0];
+
+    private final MatchFinder matchFinder;
+
+    /**
+     * Gives the blocks to scan after a block, before its next sibling.
+     */
+    private final Function<Block, Block[]> children;
+
+    private final Deque<BlockSiblings> remainingSiblings = new ArrayDeque<>();
+
+    private final Deque<Matcher> nextMatches = new ArrayDeque<>();
+
+    private final Consumer<Matcher> nextMatchesConsumer = nextMatches::add;
+
+    private final MatchingMetrics metrics = Instrumentation.getMetrics();
+
+    /**
+     * The time spent looking for matches so far, in nanoseconds, when instrumentation is enabled.
+     */
+    private long duration;
+
+    /**
+     * @param root the root of the block tree to scan
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     * @param automaton the automaton recognizing all the candidate patterns, or null to only use anchored matching
+     */
+    MatcherIterator(Block root, Function<Block, List<Pattern>> candidatePatterns, BlockAutomaton automaton)
+    {
+        this(root, candidatePatterns, automaton, MatcherIterator::getChildren);
+    }
+
+    /**
+     * @param root the root of the block tree to scan
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     * @param automaton the automaton recognizing all the candidate patterns, or null to only use anchored matching
+     * @param children gives the blocks to scan after a given block, before its next sibling, such as its
+     *     {@link InlineView flattened} content
+     */
+    MatcherIterator(Block root, Function<Block, List<Pattern>> candidatePatterns, BlockAutomaton automaton,
+        Function<Block, Block[]> children)
+    {
+        this(root, new MatchFinder(candidatePatterns, automaton), children);
+    }
+
+    /**
+     * @param root the root of the block tree to scan
+     * @param matchFinder finds the matches in the lists of siblings
+     */
+    MatcherIterator(Block root, MatchFinder matchFinder)
+    {
+        this(root, matchFinder, MatcherIterator::getChildren);
+    }
+
+    private MatcherIterator(Block root, MatchFinder matchFinder, Function<Block, Block[]> children)
+    {
+        this.matchFinder = matchFinder;
+        this.children = children;
+        this.remainingSiblings.push(new BlockSiblings(new Block[] { root }));
+    }
+
+    private static Block[] getChildren(Block block)
+    {
+        List<Block> blockChildren = block.getChildren();
+
+        return blockChildren.isEmpty() ? NO_BLOCKS : blockChildren.toArray(NO_BLOCKS);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (metrics == null || !nextMatches.isEmpty() || remainingSiblings.isEmpty()) {
+            return findNext();
+        }
+
+        long start = System.nanoTime();
+        boolean hasNext = findNext();
+        duration += System.nanoTime() - start;
+        if (remainingSiblings.isEmpty()) {
+            metrics.onScan(duration);
+        }
+
+        return hasNext;
+    }
+
+    private boolean findNext()
+    {
+        while (nextMatches.isEmpty() && !remainingSiblings.isEmpty()) {
+            BlockSiblings siblings = remainingSiblings.peek();
+            if (siblings.index < siblings.blocks.length) {
+                Block block = siblings.blocks[siblings.index];
+
+                matchFinder.find(siblings, nextMatchesConsumer);
+
+                siblings.index++;
+
+                // Go through the children of the block before going to its next sibling
+                Block[] blockChildren = children.apply(block);
+                if (blockChildren.length > 0) {
+                    remainingSiblings.push(new BlockSiblings(blockChildren));
+                }
+            } else {
+                remainingSiblings.pop();
+            }
+        }
+
+        return !nextMatches.isEmpty();
+    }
+
+    @Override
+    public Matcher next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return nextMatches.poll();
+    }
+}
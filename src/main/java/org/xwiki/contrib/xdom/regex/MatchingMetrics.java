@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+/**
+ * Receives the events of the matching hot path, once installed with {@link Instrumentation#setMetrics}. The methods
+ * are called synchronously by the threads doing the matching, possibly concurrently, so an implementation should be
+ * thread-safe and cheap, for example by incrementing counters. Every method does nothing by default.
+ * <p>
+ * This can be used to bridge the events to a metrics library, or see {@link MatchingStatistics} for an
+ * implementation published through JMX.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public interface MatchingMetrics
+{
+    /**
+     * Called when a block is considered as the anchor of a match of a pattern during a scan.
+     */
+    default void onCandidate()
+    {
+    }
+
+    /**
+     * Called when a candidate block passed the cheap checks of a pattern (its primary block pattern, or the block
+     * classes of the scan automaton) and the pattern is evaluated on its window of blocks.
+     */
+    default void onPrimaryHit()
+    {
+    }
+
+    /**
+     * Called when a regular expression of a word block pattern is evaluated.
+     */
+    default void onRegexEvaluation()
+    {
+    }
+
+    /**
+     * Called when a pattern matched.
+     *
+     * @param length the number of matched blocks
+     */
+    default void onMatch(int length)
+    {
+    }
+
+    /**
+     * Called when a pattern didn't match.
+     *
+     * @param checkedBlocks the number of blocks that were evaluated before the mismatch was detected
+     */
+    default void onMismatch(int checkedBlocks)
+    {
+    }
+
+    /**
+     * Called when matched blocks are replaced.
+     *
+     * @param count the number of replaced matches
+     */
+    default void onReplace(int count)
+    {
+    }
+
+    /**
+     * Called when a scan of a block tree is complete. A lazy scan, such as {@link Pattern#findAll(
+     * org.xwiki.rendering.block.Block)}, is only reported when all its matches have been consumed, and its duration
+     * only covers the time spent looking for the matches.
+     *
+     * @param duration the duration of the scan, in nanoseconds
+     */
+    default void onScan(long duration)
+    {
+    }
+}
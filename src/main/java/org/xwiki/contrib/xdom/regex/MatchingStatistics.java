@@ -0,0 +1,229 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link MatchingMetrics} aggregating the matching events in counters that can be published as a JMX MBean, for
+ * example:
+ *
+ * <pre>
+ * MatchingStatistics statistics = new MatchingStatistics();
+ * statistics.register();
+ * Instrumentation.setMetrics(statistics);
+ * </pre>
+ *
+ * The counters are {@link LongAdder}s, which stay cheap when updated by many threads.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class MatchingStatistics implements MatchingMetrics, MatchingStatisticsMBean
+{
+    /**
+     * The default name under which the statistics are registered.
+     */
+    public static final String DEFAULT_OBJECT_NAME = "org.xwiki.contrib.xdom.regex:type=MatchingStatistics";
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000D;
+
+    private final LongAdder candidates = new LongAdder();
+
+    private final LongAdder primaryHits = new LongAdder();
+
+    private final LongAdder regexEvaluations = new LongAdder();
+
+    private final LongAdder matches = new LongAdder();
+
+    private final LongAdder mismatches = new LongAdder();
+
+    private final LongAdder mismatchCheckedBlocks = new LongAdder();
+
+    private final LongAdder replacements = new LongAdder();
+
+    private final LongAdder scans = new LongAdder();
+
+    private final LongAdder scanDuration = new LongAdder();
+
+    @Override
+    public void onCandidate()
+    {
+        candidates.increment();
+    }
+
+    @Override
+    public void onPrimaryHit()
+    {
+        primaryHits.increment();
+    }
+
+    @Override
+    public void onRegexEvaluation()
+    {
+        regexEvaluations.increment();
+    }
+
+    @Override
+    public void onMatch(int length)
+    {
+        matches.increment();
+    }
+
+    @Override
+    public void onMismatch(int checkedBlocks)
+    {
+        mismatches.increment();
+        mismatchCheckedBlocks.add(checkedBlocks);
+    }
+
+    @Override
+    public void onReplace(int count)
+    {
+        replacements.add(count);
+    }
+
+    @Override
+    public void onScan(long duration)
+    {
+        scans.increment();
+        scanDuration.add(duration);
+    }
+
+    @Override
+    public long getCandidateCount()
+    {
+        return candidates.sum();
+    }
+
+    @Override
+    public long getPrimaryHitCount()
+    {
+        return primaryHits.sum();
+    }
+
+    @Override
+    public long getRegexEvaluationCount()
+    {
+        return regexEvaluations.sum();
+    }
+
+    @Override
+    public long getMatchCount()
+    {
+        return matches.sum();
+    }
+
+    @Override
+    public long getMismatchCount()
+    {
+        return mismatches.sum();
+    }
+
+    @Override
+    public double getMeanMismatchWindowLength()
+    {
+        long count = mismatches.sum();
+
+        return (count > 0) ? (double) mismatchCheckedBlocks.sum() / count : 0D;
+    }
+
+    @Override
+    public long getReplaceCount()
+    {
+        return replacements.sum();
+    }
+
+    @Override
+    public long getScanCount()
+    {
+        return scans.sum();
+    }
+
+    @Override
+    public double getTotalScanTime()
+    {
+        return scanDuration.sum() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getMeanScanTime()
+    {
+        long count = scans.sum();
+
+        return (count > 0) ? getTotalScanTime() / count : 0D;
+    }
+
+    @Override
+    public void reset()
+    {
+        candidates.reset();
+        primaryHits.reset();
+        regexEvaluations.reset();
+        matches.reset();
+        mismatches.reset();
+        mismatchCheckedBlocks.reset();
+        replacements.reset();
+        scans.reset();
+        scanDuration.reset();
+    }
+
+    /**
+     * Register the statistics in the platform MBean server under {@link #DEFAULT_OBJECT_NAME}.
+     *
+     * @return the name of the registered MBean
+     * @throws JMException if the statistics could not be registered, for example because another instance is already
+     *     registered under the same name
+     */
+    public ObjectName register() throws JMException
+    {
+        return register(new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    /**
+     * Register the statistics in the platform MBean server.
+     *
+     * @param name the name of the MBean
+     * @return the name of the registered MBean
+     * @throws JMException if the statistics could not be registered
+     */
+    public ObjectName register(ObjectName name) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        return server.registerMBean(this, name).getObjectName();
+    }
+
+    /**
+     * Unregister the statistics from the platform MBean server.
+     *
+     * @param name the name under which the statistics were registered
+     * @throws JMException if the statistics could not be unregistered
+     */
+    public void unregister(ObjectName name) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+/**
+ * Management interface of {@link MatchingStatistics}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public interface MatchingStatisticsMBean
+{
+    /**
+     * @return the number of blocks considered as the anchor of a match during scans
+     */
+    long getCandidateCount();
+
+    /**
+     * @return the number of candidate blocks on which a pattern was evaluated
+     */
+    long getPrimaryHitCount();
+
+    /**
+     * @return the number of regular expression evaluations
+     */
+    long getRegexEvaluationCount();
+
+    /**
+     * @return the number of successful matches
+     */
+    long getMatchCount();
+
+    /**
+     * @return the number of failed matches
+     */
+    long getMismatchCount();
+
+    /**
+     * @return the mean number of blocks evaluated before a failed match was detected
+     */
+    double getMeanMismatchWindowLength();
+
+    /**
+     * @return the number of replaced matches
+     */
+    long getReplaceCount();
+
+    /**
+     * @return the number of complete scans of block trees
+     */
+    long getScanCount();
+
+    /**
+     * @return the total duration of the complete scans, in milliseconds
+     */
+    double getTotalScanTime();
+
+    /**
+     * @return the mean duration of a complete scan, in milliseconds
+     */
+    double getMeanScanTime();
+
+    /**
+     * Reset every statistic to 0.
+     */
+    void reset();
+}
@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Finds the matches of one or several {@link Pattern} in a block tree, scanning the lists of siblings in parallel.
+ * Since a match never spans several parents, each list of siblings can be scanned independently. The lists are
+ * grouped in tasks of similar sizes that are run on the given {@link Executor}, and the matches of all the tasks are
+ * then merged in document order, so that the result is the same as the one of a sequential scan.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class ParallelMatchFinder
+{
+    /**
+     * The minimum number of blocks to scan in a task, to avoid creating too many small tasks.
+     */
+    private static final int TASK_SIZE = 2048;
+
+    private final Function<Block, List<Pattern>> candidatePatterns;
+
+    private final BlockAutomaton automaton;
+
+    private final Executor executor;
+
+    /**
+     * Lists of siblings scanned by a single task.
+     */
+    private class Task
+    {
+        private final List<BlockSiblings> siblings = new ArrayList<>();
+
+        /**
+         * For each list of siblings, the position in the document of each of the siblings.
+         */
+        private final List<int[]> positions = new ArrayList<>();
+
+        private int size;
+
+        private void add(BlockSiblings blockSiblings, int[] blockPositions)
+        {
+            siblings.add(blockSiblings);
+            positions.add(blockPositions);
+            size += blockSiblings.blocks.length;
+        }
+
+        private List<Match> run()
+        {
+            MatchFinder matchFinder = new MatchFinder(candidatePatterns, automaton);
+            List<Match> matches = new ArrayList<>();
+            for (int i = 0; i < siblings.size(); i++) {
+                BlockSiblings currentSiblings = siblings.get(i);
+                int[] currentPositions = positions.get(i);
+                matchFinder.findAll(currentSiblings,
+                    matcher -> matches.add(new Match(currentPositions[currentSiblings.index], matcher)));
+            }
+
+            return matches;
+        }
+    }
+
+    /**
+     * A match along with the position in the document of the block it was anchored on.
+     */
+    private static final class Match
+    {
+        private final int position;
+
+        private final Matcher matcher;
+
+        private Match(int position, Matcher matcher)
+        {
+            this.position = position;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * @param candidatePatterns gives the patterns that should be tried on a given block
+     * @param automaton the automaton recognizing all the candidate patterns, or null to only use anchored matching
+     * @param executor the executor running the scan tasks
+     */
+    ParallelMatchFinder(Function<Block, List<Pattern>> candidatePatterns, BlockAutomaton automaton,
+        Executor executor)
+    {
+        this.candidatePatterns = candidatePatterns;
+        this.automaton = automaton;
+        this.executor = executor;
+    }
+
+    /**
+     * @param root the root of the block tree to scan
+     * @return the matches found in the tree, in document order
+     */
+    List<Matcher> findAll(Block root)
+    {
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        long start = (metrics != null) ? System.nanoTime() : 0L;
+
+        List<CompletableFuture<List<Match>>> futures = new ArrayList<>();
+        for (Task task : split(root)) {
+            futures.add(CompletableFuture.supplyAsync(task::run, executor));
+        }
+
+        List<Match> matches = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<Match>> future : futures) {
+                matches.addAll(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        // The tasks are ordered by the position of their first list of siblings, but the lists of siblings of a
+        // task may be interleaved with the ones of the next tasks
+        matches.sort((first, second) -> Integer.compare(first.position, second.position));
+
+        List<Matcher> matchers = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            matchers.add(match.matcher);
+        }
+
+        if (metrics != null) {
+            metrics.onScan(System.nanoTime() - start);
+        }
+
+        return matchers;
+    }
+
+    /**
+     * Traverse the tree in document order to number the blocks, collect the lists of siblings and group them in
+     * tasks.
+     */
+    private List<Task> split(Block root)
+    {
+        List<Task> tasks = new ArrayList<>();
+        Task currentTask = new Task();
+        int position = 0;
+
+        Deque<BlockSiblings> remainingSiblings = new ArrayDeque<>();
+        Deque<int[]> remainingPositions = new ArrayDeque<>();
+        BlockSiblings rootSiblings = new BlockSiblings(new Block[] { root });
+        int[] rootPositions = new int[1];
+        currentTask.add(rootSiblings, rootPositions);
+        remainingSiblings.push(rootSiblings);
+        remainingPositions.push(rootPositions);
+
+        while (!remainingSiblings.isEmpty()) {
+            BlockSiblings siblings = remainingSiblings.peek();
+            if (siblings.index < siblings.blocks.length) {
+                remainingPositions.peek()[siblings.index] = position++;
+                List<Block> children = siblings.blocks[siblings.index++].getChildren();
+
+                // Go through the children of the block before going to its next sibling
+                if (!children.isEmpty()) {
+                    if (currentTask.size >= TASK_SIZE) {
+                        tasks.add(currentTask);
+                        currentTask = new Task();
+                    }
+
+                    BlockSiblings childSiblings = new BlockSiblings(children.toArray(new Block[0]));
+                    int[] childPositions = new int[children.size()];
+                    currentTask.add(childSiblings, childPositions);
+                    remainingSiblings.push(childSiblings);
+                    remainingPositions.push(childPositions);
+                }
+            } else {
+                remainingSiblings.pop();
+                remainingPositions.pop();
+            }
+        }
+        tasks.add(currentTask);
+
+        return tasks;
+    }
+}
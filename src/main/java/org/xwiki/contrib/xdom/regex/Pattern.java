@@ -19,10 +19,28 @@
  */
 package org.xwiki.contrib.xdom.regex;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.NotSerializableException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.ChildrenReplacer;
 import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.SpecialSymbolBlock;
@@ -30,56 +48,116 @@ import org.xwiki.rendering.block.SpecialSymbolBlock;
 /**
  * Defines a wiki transformation pattern. The pattern will allow to match a block and its sibling against a set
  * of rules. See {@link PatternBuilder} for creating new patterns.
+ * <p>
+ * A pattern is immutable, and can be safely shared and used concurrently by several threads. A {@link Matcher}, on
+ * the other hand, should only be used by one thread.
  *
  * @version $Id$
  * @since 1.0
  */
 public class Pattern
 {
-    private List<BlockPattern<? extends Block>> blockPatterns = new ArrayList<>();
+    private final List<BlockPattern<? extends Block>> blockPatterns;
 
-    private BlockPattern<? extends Block> primaryBlockPattern;
+    private final BlockPattern<? extends Block> primaryBlockPattern;
 
-    private int primaryPatternBlockPosition;
+    private final int primaryPatternBlockPosition;
 
     /**
-     * Add a new {@link BlockPattern}.
+     * The program matching the pattern when it has quantifiers or alternations, null for a sequence of block patterns.
+     */
+    private final BlockProgram program;
+
+    /**
+     * The automaton used to scan block trees, built the first time it's needed, see {@link #getAutomaton()}.
+     */
+    private volatile BlockAutomaton automaton;
+
+    /**
+     * Build a new pattern.
+     *
+     * @param blockPatterns the {@link BlockPattern} that constitute the pattern, in order
+     * @since 1.1
+     */
+    public Pattern(List<BlockPattern<? extends Block>> blockPatterns)
+    {
+        if (blockPatterns.isEmpty()) {
+            throw new IllegalArgumentException("A pattern should contain at least one block pattern");
+        }
+
+        this.blockPatterns = Collections.unmodifiableList(new ArrayList<>(blockPatterns));
+        this.primaryPatternBlockPosition = getPrimaryBlockPatternPosition(this.blockPatterns);
+        this.primaryBlockPattern = this.blockPatterns.get(this.primaryPatternBlockPosition);
+        this.program = null;
+    }
+
+    /**
+     * Build a new pattern anchored on the given pattern block.
      *
-     * @param blockPattern the pattern block to add
+     * @param blockPatterns the {@link BlockPattern} that constitute the pattern, in order
+     * @param primaryPatternBlockPosition the position of the primary block pattern
      */
-    public void addPatternBlock(BlockPattern<? extends Block> blockPattern)
+    Pattern(List<BlockPattern<? extends Block>> blockPatterns, int primaryPatternBlockPosition)
     {
-        this.blockPatterns.add(blockPattern);
+        this.blockPatterns = Collections.unmodifiableList(new ArrayList<>(blockPatterns));
+        this.primaryPatternBlockPosition = primaryPatternBlockPosition;
+        this.primaryBlockPattern = blockPatterns.get(primaryPatternBlockPosition);
+        this.program = null;
+    }
+
+    /**
+     * Build a new pattern matching sequences of blocks of different lengths. Its matches are anchored on their first
+     * block.
+     *
+     * @param program the program matching the pattern
+     */
+    Pattern(BlockProgram program)
+    {
+        if (program.getMinLength() == 0) {
+            throw new IllegalArgumentException("A pattern should not match an empty sequence of blocks");
+        }
+
+        this.blockPatterns = program.getBlockPatterns();
+        this.primaryPatternBlockPosition = 0;
+        this.primaryBlockPattern = program.getFirstBlockPattern();
+        this.program = program;
+    }
 
-        // At each new block, try to update the primary pattern block to a special symbol block
+    private static int getPrimaryBlockPatternPosition(List<BlockPattern<? extends Block>> blockPatterns)
+    {
         // We try to have a primary block that is as less frequent as possible in documents, in order to start
         // matching on a few elements.
         // We take these patterns in increasing order of priority :
         // * Word patterns
         // * Symbol patterns
         // * Symbol patterns that have a specific symbol defined
-        boolean isPrimaryPatternNull = (primaryBlockPattern == null);
-        boolean isBlockPatternASymbol = blockPattern.getBlockClass().equals(SpecialSymbolBlock.class);
-        boolean wordToSymbol = false;
-        boolean specificSymbol = false;
-
-        if (!isPrimaryPatternNull) {
-            // Don't compute anything else, as it may throw an NPE if the primary pattern is null
-            boolean isPrimaryBlockPatternASymbol = primaryBlockPattern.getBlockClass().equals(SpecialSymbolBlock.class);
-            wordToSymbol = (!isPrimaryBlockPatternASymbol && isBlockPatternASymbol);
-            specificSymbol = (isPrimaryBlockPatternASymbol && isBlockPatternASymbol
-                && ((SpecialSymbolBlockPattern) primaryBlockPattern).getSymbol() == '\u0000'
-                && ((SpecialSymbolBlockPattern) blockPattern).getSymbol() != '\u0000');
+        // When several patterns have the same priority, the first one is used.
+        int primaryPosition = 0;
+        int primaryPriority = getPrimaryPriority(blockPatterns.get(0));
+        for (int i = 1; i < blockPatterns.size(); i++) {
+            int priority = getPrimaryPriority(blockPatterns.get(i));
+            if (priority > primaryPriority) {
+                primaryPosition = i;
+                primaryPriority = priority;
+            }
         }
 
-        if (primaryBlockPattern == null || wordToSymbol || specificSymbol) {
-            primaryBlockPattern = blockPattern;
-            primaryPatternBlockPosition = blockPatterns.size() - 1;
+        return primaryPosition;
+    }
+
+    private static int getPrimaryPriority(BlockPattern<? extends Block> blockPattern)
+    {
+        if (blockPattern.getBlockClass().equals(SpecialSymbolBlock.class)) {
+            return (((SpecialSymbolBlockPattern) blockPattern).getSymbol() != '\u0000') ? 2 : 1;
+        } else {
+            return 0;
         }
     }
 
     /**
-     * @return the list of {@link BlockPattern} that constitute the pattern
+     * @return the unmodifiable list of {@link BlockPattern} that constitute the pattern; when the pattern is not
+     *     {@link #isFixedLength() fixed-length}, the distinct block patterns in the order in which they appear in the
+     *     pattern
      */
     public List<BlockPattern<? extends Block>> getBlockPatterns()
     {
@@ -87,7 +165,44 @@ public class Pattern
     }
 
     /**
-     * @return the first pattern block that will be matched in the pattern
+     * @return true if every match of the pattern has the same number of blocks, each matched by the block pattern at
+     *     the same position in {@link #getBlockPatterns()}
+     * @since 1.1
+     */
+    public boolean isFixedLength()
+    {
+        return program == null;
+    }
+
+    /**
+     * @return the minimum number of blocks of a match
+     * @since 1.1
+     */
+    public int getMinLength()
+    {
+        return (program != null) ? program.getMinLength() : blockPatterns.size();
+    }
+
+    /**
+     * @return the maximum number of blocks of a match, or -1 if the number of blocks is not bounded
+     * @since 1.1
+     */
+    public int getMaxLength()
+    {
+        return (program != null) ? program.getMaxLength() : blockPatterns.size();
+    }
+
+    /**
+     * @return the program matching the pattern, or null if the pattern is a sequence of block patterns
+     */
+    BlockProgram getProgram()
+    {
+        return program;
+    }
+
+    /**
+     * @return the first pattern block that will be matched in the pattern; when the pattern is not
+     *     {@link #isFixedLength() fixed-length}, a block pattern accepting the first block of every match
      */
     public BlockPattern<? extends Block> getPrimaryBlockPattern()
     {
@@ -102,6 +217,86 @@ public class Pattern
         return primaryPatternBlockPosition;
     }
 
+    /**
+     * Choose the primary block pattern that is expected to match the fewest blocks according to the given statistics,
+     * instead of relying on the kind of the pattern blocks only: a rare word is usually much more selective than a
+     * common symbol such as a dot. This speeds up the scans that only evaluate the blocks matched by the primary
+     * block pattern, such as {@link #findAll(XDOMIndex)}, {@link PatternSet} and {@link StreamingMatcher}. When
+     * several pattern blocks have the same estimate, the current primary block pattern is kept, then the first one is
+     * used.
+     * <p>
+     * Since {@link #getMatcher(Block)} expects the block matched by the primary block pattern, the returned pattern
+     * should be used consistently in place of this one. A pattern that is not {@link #isFixedLength() fixed-length}
+     * is always anchored on its first block and is returned as is.
+     *
+     * @param statistics the token frequencies of the documents the pattern will be run against
+     * @return a pattern with the same pattern blocks and the most selective primary block pattern, or this pattern if
+     *     its primary block pattern is already the most selective one
+     * @since 1.1
+     */
+    public Pattern optimize(TokenStatistics statistics)
+    {
+        long primaryEstimate = statistics.estimateMatches(primaryBlockPattern);
+        if (!isFixedLength() || primaryEstimate < 0) {
+            return this;
+        }
+
+        int primaryPosition = primaryPatternBlockPosition;
+        for (int i = 0; i < blockPatterns.size(); i++) {
+            long estimate = statistics.estimateMatches(blockPatterns.get(i));
+            if (estimate >= 0 && estimate < primaryEstimate) {
+                primaryPosition = i;
+                primaryEstimate = estimate;
+            }
+        }
+
+        return (primaryPosition != primaryPatternBlockPosition) ? new Pattern(blockPatterns, primaryPosition) : this;
+    }
+
+    /**
+     * Write the compiled form of the pattern, including its primary block pattern position and the literals of its
+     * word patterns, so that it can be loaded again with {@link #read(DataInput)} much faster than by building it from
+     * its string pattern. Several patterns can be written to the same output one after the other.
+     *
+     * @param output where to write the pattern
+     * @throws IOException if the pattern can't be written
+     * @throws NotSerializableException if the pattern contains a custom {@link BlockPattern}
+     * @since 1.1
+     */
+    public void write(DataOutput output) throws IOException
+    {
+        PatternSerializer.write(this, output);
+    }
+
+    /**
+     * Read a pattern written with {@link #write(DataOutput)}. The regular expressions of the word patterns are only
+     * compiled when they're first evaluated.
+     *
+     * @param input where to read the pattern from
+     * @return the pattern
+     * @throws IOException if the pattern can't be read or is not valid
+     * @since 1.1
+     */
+    public static Pattern read(DataInput input) throws IOException
+    {
+        return PatternSerializer.read(input);
+    }
+
+    /**
+     * @return the automaton recognizing this pattern
+     */
+    BlockAutomaton getAutomaton()
+    {
+        BlockAutomaton result = automaton;
+        if (result == null) {
+            // Building the automaton twice in concurrent scans is harmless
+            result = new BlockAutomaton(Collections.singletonList(this));
+            automaton = result;
+        }
+
+        return result;
+    }
+
     /**
      * Checks if the given block and its siblings match the pattern.
      *
@@ -136,4 +331,289 @@ public class Pattern
     {
         return new Matcher(this, block, stopOnNoMatch);
     }
+
+    /**
+     * Create a reusable {@link Matcher} that is not bound to any block yet. Use {@link Matcher#reset(Block)} to match
+     * the pattern against a block; the internal buffers of the matcher are recycled at each reset.
+     *
+     * @return a new reusable matcher
+     * @since 1.1
+     */
+    public Matcher matcher()
+    {
+        return matcher(false);
+    }
+
+    /**
+     * Create a reusable {@link Matcher} that is not bound to any block yet, see {@link #matcher()}.
+     *
+     * @param stopOnNoMatch true if the match should stop on first no match, useful to save computing resources
+     * when performing a lot of matches
+     * @return a new reusable matcher
+     * @since 1.1
+     */
+    public Matcher matcher(boolean stopOnNoMatch)
+    {
+        return new Matcher(this, stopOnNoMatch);
+    }
+
+    /**
+     * Find every match of the pattern in an indexed block tree. Only the indexed blocks that may be matched by the
+     * {@link #getPrimaryBlockPattern() primary pattern block} are evaluated, without traversing the tree. The matches
+     * are reported parent by parent and, for a given parent, in the order of its children. A match that overlaps a
+     * previously found match is skipped. All the matches are found before the stream is returned, so the stream is not
+     * affected by the later updates of the index.
+     *
+     * @param index the index of the block tree to scan
+     * @return a stream of the matching {@link Matcher}
+     * @since 1.1
+     */
+    public Stream<Matcher> findAll(XDOMIndex index)
+    {
+        return index.findAll(this).stream();
+    }
+
+    /**
+     * Find every match of the pattern in the given block tree, scanning the lists of siblings of the tree in parallel
+     * on the {@link ForkJoinPool#commonPool() common pool}. See {@link #findAllParallel(Block, Executor)}.
+     *
+     * @param root the root of the block tree to scan
+     * @return the matching {@link Matcher}, in document order
+     * @since 1.1
+     */
+    public List<Matcher> findAllParallel(Block root)
+    {
+        return findAllParallel(root, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Find every match of the pattern in the given block tree, scanning the lists of siblings of the tree in
+     * parallel. Since a match never spans several parents, the children of the blocks of the tree are split into
+     * tasks that are run on the given executor. The matches are the same as the ones of {@link #findAll(Block)}, in
+     * the same order. The tree should not be modified during the scan.
+     *
+     * @param root the root of the block tree to scan
+     * @param executor the executor running the scan tasks
+     * @return the matching {@link Matcher}, in document order
+     * @since 1.1
+     */
+    public List<Matcher> findAllParallel(Block root, Executor executor)
+    {
+        List<Pattern> candidatePatterns = Collections.singletonList(this);
+        return new ParallelMatchFinder(block -> candidatePatterns, getAutomaton(), executor).findAll(root);
+    }
+
+    /**
+     * Replace every match of the pattern in the given block tree. The matches are first collected in a single
+     * traversal, as with {@link #findAll(Block)}, then the replacements are applied with one rebuild of the children
+     * of each parent block. The replacement function is called for each match before any modification is made to
+     * the tree, so the {@link Matcher} it receives can be used to build the replacement block from the matched
+     * blocks.
+     *
+     * @param root the root of the block tree in which the replacements should be made
+     * @param replacement gives the block that should replace a match, or null if the match should be left unchanged
+     * @return the number of replaced matches
+     * @since 1.1
+     */
+    public int replaceAll(Block root, Function<Matcher, Block> replacement)
+    {
+        Map<Block, ChildrenReplacer> replacers = new IdentityHashMap<>();
+        int count = 0;
+
+        List<Pattern> candidatePatterns = Collections.singletonList(this);
+        Iterator<Matcher> matchers = new MatcherIterator(root, block -> candidatePatterns, getAutomaton());
+        while (matchers.hasNext()) {
+            Matcher matcher = matchers.next();
+            Block firstBlock = matcher.getMatchedBlock(0);
+            // The replacement block may be built from the matched blocks, which then get it as parent
+            Block parent = firstBlock.getParent();
+            Block replacementBlock = replacement.apply(matcher);
+            if (replacementBlock != null && parent != null) {
+                replacers.computeIfAbsent(parent, ChildrenReplacer::new)
+                    .replace(firstBlock, matcher.getMatchedBlockCount(), replacementBlock);
+                count++;
+            }
+        }
+
+        replacers.values().forEach(ChildrenReplacer::apply);
+
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null) {
+            metrics.onReplace(count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Visit every match of the pattern in the given block tree, see {@link #scan(Block, int, MatchVisitor)}.
+     *
+     * @param root the root of the block tree to scan
+     * @param visitor receives the matches, and tells if the scan should go on
+     * @return the number of visited matches
+     * @since 1.1
+     */
+    public int scan(Block root, MatchVisitor visitor)
+    {
+        return scan(root, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visit the matches of the pattern in the given block tree, in the order of {@link #findAll(Block)}, until the
+     * visitor stops the scan or the maximum number of matches is reached. The same {@link Matcher} is reset for each
+     * match of a {@link #isFixedLength() fixed-length} pattern, along with the match results it holds, such as the
+     * regex groups of the words: since no match is retained by the scan, the memory it uses doesn't depend on the size
+     * of the document or on the number of matches. The tree should not be modified during the scan.
+     *
+     * @param root the root of the block tree to scan
+     * @param maxMatches the maximum number of matches to visit
+     * @param visitor receives the matches, and tells if the scan should go on
+     * @return the number of visited matches
+     * @since 1.1
+     */
+    public int scan(Block root, int maxMatches, MatchVisitor visitor)
+    {
+        if (maxMatches < 0) {
+            throw new IllegalArgumentException(
+                String.format("The maximum number of matches [%d] should not be negative", maxMatches));
+        }
+
+        List<Pattern> candidatePatterns = Collections.singletonList(this);
+        Iterator<Matcher> matchers =
+            new MatcherIterator(root, new MatchFinder(block -> candidatePatterns, getAutomaton(), true));
+        int count = 0;
+        boolean isScanning = true;
+        while (isScanning && count < maxMatches && matchers.hasNext()) {
+            count++;
+            isScanning = visitor.visit(matchers.next());
+        }
+
+        return count;
+    }
+
+    /**
+     * Find every match of the pattern in the {@link InlineView inline content} of the blocks of the given tree, the
+     * {@link InlineView#FORMATTING_AND_LINKS formatting and link blocks} being transparent, so that a phrase split by
+     * inline formatting can be matched. See {@link #findAllFlattened(Block, Predicate)}.
+     *
+     * @param root the root of the block tree to scan
+     * @return a stream of the matching {@link Matcher}
+     * @since 1.1
+     */
+    public Stream<Matcher> findAllFlattened(Block root)
+    {
+        return findAllFlattened(root, InlineView.FORMATTING_AND_LINKS);
+    }
+
+    /**
+     * Find every match of the pattern in the {@link InlineView inline content} of the blocks of the given tree. The
+     * tree is traversed as with {@link #findAll(Block)}, but the content of the transparent blocks is scanned as if it
+     * were made of siblings of the transparent blocks, without copying any block. The matched blocks are the blocks of
+     * the tree, that may have different parents, and {@link Matcher#replace(Block)} splits the transparent blocks as
+     * needed.
+     *
+     * @param root the root of the block tree to scan
+     * @param isTransparent tells if the content of a block should be inlined in place of the block
+     * @return a stream of the matching {@link Matcher}
+     * @since 1.1
+     */
+    public Stream<Matcher> findAllFlattened(Block root, Predicate<Block> isTransparent)
+    {
+        List<Pattern> candidatePatterns = Collections.singletonList(this);
+        Iterator<Matcher> matchers = new MatcherIterator(root, block -> candidatePatterns, getAutomaton(),
+            block -> InlineView.flatten(block, isTransparent));
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(matchers, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Replace every match of the pattern in the {@link InlineView inline content} of the blocks of the given tree,
+     * the {@link InlineView#FORMATTING_AND_LINKS formatting and link blocks} being transparent. See
+     * {@link #replaceAllFlattened(Block, Predicate, Function)}.
+     *
+     * @param root the root of the block tree in which the replacements should be made
+     * @param replacement gives the block that should replace a match, or null if the match should be left unchanged
+     * @return the number of replaced matches
+     * @since 1.1
+     */
+    public int replaceAllFlattened(Block root, Function<Matcher, Block> replacement)
+    {
+        return replaceAllFlattened(root, InlineView.FORMATTING_AND_LINKS, replacement);
+    }
+
+    /**
+     * Replace every match of the pattern in the {@link InlineView inline content} of the blocks of the given tree. The
+     * matches are first collected with {@link #findAllFlattened(Block, Predicate)} and the replacement function is
+     * called for each of them before any modification is made to the tree. The replacements are then applied from the
+     * last match to the first one, so that splitting the transparent blocks around a match doesn't move the blocks of
+     * the previous matches.
+     *
+     * @param root the root of the block tree in which the replacements should be made
+     * @param isTransparent tells if the content of a block should be inlined in place of the block
+     * @param replacement gives the block that should replace a match, or null if the match should be left unchanged
+     * @return the number of replaced matches
+     * @since 1.1
+     */
+    public int replaceAllFlattened(Block root, Predicate<Block> isTransparent, Function<Matcher, Block> replacement)
+    {
+        List<Matcher> matchers = new ArrayList<>();
+        List<Block> replacementBlocks = new ArrayList<>();
+        List<Block[]> matchedBlockParents = new ArrayList<>();
+        Set<Block> adoptingBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        findAllFlattened(root, isTransparent).forEach(matcher -> {
+            // The replacement block may be built from the matched blocks, which then get it as parent
+            Block[] parents = matcher.getMatchedBlockParents();
+            Block replacementBlock = replacement.apply(matcher);
+            if (replacementBlock != null && parents[0] != null) {
+                matchers.add(matcher);
+                replacementBlocks.add(replacementBlock);
+                matchedBlockParents.add(parents);
+                for (int i = 0; i < parents.length; i++) {
+                    Block parent = matcher.getMatchedBlock(i).getParent();
+                    if (parent != parents[i]) {
+                        adoptingBlocks.add(parent);
+                    }
+                }
+            }
+        });
+
+        for (int i = matchers.size() - 1; i >= 0; i--) {
+            matchers.get(i).replaceBlocks(replacementBlocks.get(i), matchedBlockParents.get(i));
+        }
+
+        // Replacing a match rebuilds the children of its parents, which takes back the blocks of the previous matches
+        // that are still among these children but were adopted by their replacement blocks
+        for (Block adoptingBlock : adoptingBlocks) {
+            adoptingBlock.setChildren(new ArrayList<>(adoptingBlock.getChildren()));
+        }
+
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null) {
+            metrics.onReplace(matchers.size());
+        }
+
+        return matchers.size();
+    }
+
+    /**
+     * Find every match of the pattern in the given block tree. The tree is traversed once, in document order, and
+     * matching is only attempted on the blocks accepted by the {@link #getPrimaryBlockPattern() primary pattern
+     * block}. A match that overlaps a previously found match is skipped. The children of each block are copied to
+     * an array once, so that the matching doesn't need to walk through the siblings of the candidate blocks.
+     * <p>
+     * The returned stream is lazy: the tree is traversed as the stream is consumed, so it should not be modified
+     * before the stream is fully consumed.
+     *
+     * @param root the root of the block tree to scan (the root itself is also considered as a candidate, but not its
+     *     siblings)
+     * @return a stream of the matching {@link Matcher}
+     * @since 1.1
+     */
+    public Stream<Matcher> findAll(Block root)
+    {
+        List<Pattern> candidatePatterns = Collections.singletonList(this);
+        Iterator<Matcher> matchers = new MatcherIterator(root, block -> candidatePatterns, getAutomaton());
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(matchers, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
 }
@@ -19,117 +19,370 @@
  */
 package org.xwiki.contrib.xdom.regex;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
 import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
 import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
 import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.rendering.block.Block;
 
 /**
- * Builder for {@link Pattern}.
+ * Builder for {@link Pattern}. A single instance can be shared and used concurrently. The word patterns having the same
+ * regular expression are shared by the patterns built by an instance, so that they are compiled once and that their
+ * results can be cached while matching.
+ * <p>
+ * A string pattern is a sequence of:
+ * <ul>
+ * <li>{@code ^regex$}: a word matching the given regular expression</li>
+ * <li>{@code ?}: any special symbol</li>
+ * <li>a space: a space</li>
+ * <li>{@code \c}: the special symbol {@code c}, or a space if {@code c} is a space</li>
+ * <li>any other character: the special symbol with this character</li>
+ * </ul>
+ * With the {@link #EXTENDED} flag, the following operators can also be used, and should be escaped to match the
+ * corresponding special symbols:
+ * <ul>
+ * <li>{@code (a)}: a group</li>
+ * <li>{@code a|b}: either {@code a} or {@code b}, {@code a} being preferred</li>
+ * <li>{@code a*}, {@code a+}: {@code a} zero or more times, one or more times</li>
+ * <li>{@code a{n}}, {@code a{n,}}, {@code a{n,m}}, {@code a{,m}}: {@code a} exactly {@code n} times, at least
+ * {@code n} times, between {@code n} and {@code m} times, at most {@code m} times; {@code a{0,1}} makes {@code a}
+ * optional since {@code ?} already matches any special symbol</li>
+ * </ul>
+ * The quantifiers are greedy. The patterns using these operators are matched without backtracking, in a time linear
+ * in the number of blocks, see {@link Pattern#isFixedLength()}.
  *
  * @version $Id$
  * @since 1.0
  */
 public class PatternBuilder
 {
-    private int position;
-
-    private boolean isEscaping;
-
-    private boolean willEscape;
+    /**
+     * Flag enabling the groups, alternations and quantifiers in the string patterns.
+     *
+     * @since 1.1
+     */
+    public static final int EXTENDED = 0x01;
 
-    private BlockPattern<?> currentBlock;
+    /**
+     * The maximum number of repetitions that can be given to a quantifier.
+     */
+    private static final int MAX_REPETITIONS = 1000;
 
-    private Pattern expression;
+    /**
+     * The maximum number of word patterns shared by the patterns built by a builder.
+     */
+    private static final int MAX_SHARED_WORD_PATTERNS = 10000;
 
-    private String pattern;
+    /**
+     * The word patterns built so far, by regular expression.
+     */
+    private final Map<String, WordBlockPattern> wordBlockPatterns = new ConcurrentHashMap<>();
 
     /**
-     * Build a new pattern.
-     *
-     * @param pattern the string pattern to use
-     * @return the new Pattern created form the string pattern
+     * The state of the parsing of a string pattern.
      */
-    public Pattern build(String pattern)
+    private static final class Parser
     {
-        this.pattern = pattern;
-        this.expression = new Pattern();
+        private final String pattern;
 
-        buildInternal();
+        private final Map<String, WordBlockPattern> wordBlockPatterns;
 
-        return expression;
-    }
+        private final boolean isExtended;
 
-    private void buildInternal()
-    {
-        willEscape = false;
+        /**
+         * The groups being parsed, the outermost one being the whole pattern. Each group holds its alternatives, the
+         * last one being the sequence of nodes being parsed.
+         */
+        private final Deque<List<List<BlockProgram.Node>>> groups = new ArrayDeque<>();
 
-        char currentChar = pattern.charAt(position);
-        if (currentBlock == null) {
-            handleNoCurrentBlock(currentChar);
-        } else if (currentBlock instanceof WordBlockPattern) {
-            handleWordPatternBlock(currentChar);
-        }
+        private boolean isEscaping;
+
+        private boolean willEscape;
+
+        /**
+         * The regular expression of the word pattern being parsed, or null if no word pattern is being parsed.
+         */
+        private StringBuilder currentWord;
 
-        isEscaping = willEscape;
+        /**
+         * The bounds of the quantifier being parsed, or null if no quantifier is being parsed.
+         */
+        private StringBuilder currentQuantifier;
 
-        if (++position < pattern.length()) {
-            buildInternal();
-        } else if (currentBlock instanceof WordBlockPattern) {
-            ((WordBlockPattern) currentBlock).buildPattern();
+        private int position;
+
+        /**
+         * True if the last node of the current sequence was followed by a quantifier, which cannot be repeated again.
+         */
+        private boolean isRepeated;
+
+        private Parser(String pattern, int flags, Map<String, WordBlockPattern> wordBlockPatterns)
+        {
+            this.pattern = pattern;
+            this.wordBlockPatterns = wordBlockPatterns;
+            this.isExtended = (flags & EXTENDED) != 0;
+            this.groups.push(createGroup());
         }
-    }
 
-    private void handleNoCurrentBlock(char currentChar)
-    {
-        if (isEscaping) {
-            if (currentChar == ' ') {
-                expression.addPatternBlock(new SpaceBlockPattern());
+        private Pattern parse()
+        {
+            for (position = 0; position < pattern.length(); position++) {
+                willEscape = false;
+
+                char currentChar = pattern.charAt(position);
+                if (currentWord != null) {
+                    handleWordPatternBlock(currentChar);
+                } else if (currentQuantifier != null) {
+                    handleQuantifier(currentChar);
+                } else {
+                    handleNoCurrentBlock(currentChar);
+                }
+
+                isEscaping = willEscape;
+            }
+
+            if (currentWord != null) {
+                addBlockPattern(createWordBlockPattern(currentWord.toString()));
+            }
+            if (currentQuantifier != null) {
+                throw new IllegalArgumentException(
+                    String.format("Unterminated quantifier [{%s] in pattern [%s]", currentQuantifier, pattern));
+            }
+            if (groups.size() > 1) {
+                throw new IllegalArgumentException(String.format("Unclosed group in pattern [%s]", pattern));
+            }
+
+            BlockProgram.Node root = createNode(groups.pop());
+            List<BlockPattern<? extends Block>> blockPatterns = new ArrayList<>();
+            if (root.collectSequence(blockPatterns)) {
+                return new Pattern(blockPatterns);
             } else {
-                expression.addPatternBlock(new SpecialSymbolBlockPattern(currentChar));
+                return new Pattern(new BlockProgram(root));
+            }
+        }
+
+        private void handleNoCurrentBlock(char currentChar)
+        {
+            if (isEscaping) {
+                if (currentChar == ' ') {
+                    addBlockPattern(new SpaceBlockPattern());
+                } else {
+                    addBlockPattern(new SpecialSymbolBlockPattern(currentChar));
+                }
+            } else if (!isExtended || !handleOperator(currentChar)) {
+                switch (currentChar) {
+                    case '^':
+                        currentWord = new StringBuilder();
+                        currentWord.append(currentChar);
+                        break;
+                    case '\\':
+                        willEscape = true;
+                        break;
+                    case '?':
+                        addBlockPattern(new SpecialSymbolBlockPattern());
+                        break;
+                    case ' ':
+                        addBlockPattern(new SpaceBlockPattern());
+                        break;
+                    default:
+                        addBlockPattern(new SpecialSymbolBlockPattern(currentChar));
+                        break;
+                }
             }
-        } else {
+        }
+
+        /**
+         * @return false if the given character is not an operator
+         */
+        private boolean handleOperator(char currentChar)
+        {
             switch (currentChar) {
-                case '^':
-                    currentBlock = new WordBlockPattern();
-                    ((WordBlockPattern) currentBlock).addChar(currentChar);
-                    expression.addPatternBlock(currentBlock);
+                case '(':
+                    groups.push(createGroup());
+                    isRepeated = false;
                     break;
-                case '\\':
-                    willEscape = true;
+                case ')':
+                    if (groups.size() == 1) {
+                        throw new IllegalArgumentException(
+                            String.format("Unmatched [)] at position [%d] in pattern [%s]", position, pattern));
+                    }
+                    addNode(createNode(groups.pop()));
                     break;
-                case '?':
-                    expression.addPatternBlock(new SpecialSymbolBlockPattern());
+                case '|':
+                    groups.peek().add(new ArrayList<>());
+                    isRepeated = false;
                     break;
-                case ' ':
-                    expression.addPatternBlock(new SpaceBlockPattern());
+                case '*':
+                    repeatLastNode(0, -1);
                     break;
-                default:
-                    expression.addPatternBlock(new SpecialSymbolBlockPattern(currentChar));
+                case '+':
+                    repeatLastNode(1, -1);
                     break;
+                case '{':
+                    currentQuantifier = new StringBuilder();
+                    break;
+                default:
+                    return false;
+            }
+
+            return true;
+        }
+
+        private void handleWordPatternBlock(char currentChar)
+        {
+            if (isEscaping) {
+                currentWord.append(currentChar);
+            } else {
+                switch (currentChar) {
+                    case '\\':
+                        willEscape = true;
+                        break;
+                    case '$':
+                        currentWord.append(currentChar);
+                        addBlockPattern(createWordBlockPattern(currentWord.toString()));
+                        currentWord = null;
+                        break;
+                    default:
+                        currentWord.append(currentChar);
+                        break;
+                }
+            }
+        }
+
+        private void handleQuantifier(char currentChar)
+        {
+            if (currentChar != '}') {
+                currentQuantifier.append(currentChar);
+                return;
+            }
+
+            String bounds = currentQuantifier.toString();
+            currentQuantifier = null;
+            try {
+                int separator = bounds.indexOf(',');
+                if (separator < 0) {
+                    int count = Integer.parseInt(bounds);
+                    repeatLastNode(count, count);
+                } else {
+                    String min = bounds.substring(0, separator);
+                    String max = bounds.substring(separator + 1);
+                    repeatLastNode(min.isEmpty() ? 0 : Integer.parseInt(min),
+                        max.isEmpty() ? -1 : Integer.parseInt(max));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                    String.format("Invalid quantifier [{%s}] in pattern [%s]", bounds, pattern), e);
             }
         }
+
+        private void repeatLastNode(int min, int max)
+        {
+            if (min < 0 || min > MAX_REPETITIONS || max > MAX_REPETITIONS || (max >= 0 && max < min)) {
+                throw new IllegalArgumentException(String.format(
+                    "Invalid repetition bounds [%d, %d] at position [%d] in pattern [%s]", min, max, position,
+                    pattern));
+            }
+
+            List<BlockProgram.Node> sequence = getCurrentSequence();
+            if (sequence.isEmpty() || isRepeated) {
+                throw new IllegalArgumentException(
+                    String.format("Nothing to repeat at position [%d] in pattern [%s]", position, pattern));
+            }
+            sequence.add(new BlockProgram.Repetition(sequence.remove(sequence.size() - 1), min, max));
+            isRepeated = true;
+        }
+
+        /**
+         * Reuse the word pattern built for the same regular expression, if any, so that the regular expression is
+         * compiled once. New word patterns are not shared anymore once the builder holds too many of them.
+         */
+        private WordBlockPattern createWordBlockPattern(String stringPattern)
+        {
+            WordBlockPattern wordBlockPattern = wordBlockPatterns.get(stringPattern);
+            if (wordBlockPattern == null) {
+                wordBlockPattern = new WordBlockPattern(stringPattern);
+                if (wordBlockPatterns.size() < MAX_SHARED_WORD_PATTERNS) {
+                    WordBlockPattern previousWordBlockPattern =
+                        wordBlockPatterns.putIfAbsent(stringPattern, wordBlockPattern);
+                    if (previousWordBlockPattern != null) {
+                        wordBlockPattern = previousWordBlockPattern;
+                    }
+                }
+            }
+
+            return wordBlockPattern;
+        }
+
+        private void addBlockPattern(BlockPattern<? extends Block> blockPattern)
+        {
+            addNode(new BlockProgram.Atom(blockPattern));
+        }
+
+        private void addNode(BlockProgram.Node node)
+        {
+            getCurrentSequence().add(node);
+            isRepeated = false;
+        }
+
+        private List<BlockProgram.Node> getCurrentSequence()
+        {
+            List<List<BlockProgram.Node>> alternatives = groups.peek();
+
+            return alternatives.get(alternatives.size() - 1);
+        }
+
+        private static List<List<BlockProgram.Node>> createGroup()
+        {
+            List<List<BlockProgram.Node>> alternatives = new ArrayList<>();
+            alternatives.add(new ArrayList<>());
+
+            return alternatives;
+        }
+
+        private static BlockProgram.Node createNode(List<List<BlockProgram.Node>> alternatives)
+        {
+            List<BlockProgram.Node> nodes = new ArrayList<>(alternatives.size());
+            for (List<BlockProgram.Node> sequence : alternatives) {
+                nodes.add((sequence.size() == 1) ? sequence.get(0) : new BlockProgram.Sequence(sequence));
+            }
+
+            return (nodes.size() == 1) ? nodes.get(0) : new BlockProgram.Alternation(nodes);
+        }
     }
 
-    private void handleWordPatternBlock(char currentChar)
+    /**
+     * Build a new pattern.
+     *
+     * @param pattern the string pattern to use
+     * @return the new Pattern created form the string pattern
+     */
+    public Pattern build(String pattern)
     {
-        WordBlockPattern currentWordBlock = (WordBlockPattern) currentBlock;
-        if (isEscaping) {
-            currentWordBlock.addChar(currentChar);
-        } else {
-            switch (currentChar) {
-                case '\\':
-                    willEscape = true;
-                    break;
-                case '$':
-                    currentWordBlock.addChar(currentChar);
-                    currentWordBlock.buildPattern();
-                    currentBlock = null;
-                    break;
-                default:
-                    currentWordBlock.addChar(currentChar);
-                    break;
-            }
+        return build(pattern, 0);
+    }
+
+    /**
+     * Build a new pattern.
+     *
+     * @param pattern the string pattern to use
+     * @param flags the flags changing the syntax of the string pattern, such as {@link #EXTENDED}
+     * @return the new Pattern created form the string pattern
+     * @throws IllegalArgumentException if the string pattern is not valid
+     * @since 1.1
+     */
+    public Pattern build(String pattern, int flags)
+    {
+        if ((flags & ~EXTENDED) != 0) {
+            throw new IllegalArgumentException(String.format("Unknown pattern flags [%d]", flags));
         }
+
+        return new Parser(pattern, flags, wordBlockPatterns).parse();
     }
 }
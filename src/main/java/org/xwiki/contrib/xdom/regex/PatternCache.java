@@ -0,0 +1,167 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A thread-safe and bounded cache of {@link Pattern} compiled from their string representation, so that patterns
+ * that are used frequently don't have to be parsed again. When the cache is full, the least recently used pattern is
+ * evicted.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PatternCache
+{
+    /**
+     * The default maximum number of patterns kept in the cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    private final Map<Key, Pattern> patterns;
+
+    /**
+     * A string pattern along with the flags used to build it.
+     */
+    private static final class Key
+    {
+        private final String pattern;
+
+        private final int flags;
+
+        private Key(String pattern, int flags)
+        {
+            this.pattern = pattern;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+
+            return flags == key.flags && pattern.equals(key.pattern);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(pattern, flags);
+        }
+    }
+
+    /**
+     * Build a new cache holding at most {@link #DEFAULT_MAX_SIZE} patterns.
+     */
+    public PatternCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Build a new cache.
+     *
+     * @param maxSize the maximum number of patterns kept in the cache
+     */
+    public PatternCache(int maxSize)
+    {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid cache size [%d]", maxSize));
+        }
+
+        this.patterns = new LinkedHashMap<Key, Pattern>(16, 0.75F, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the pattern corresponding to the given string, building it if it's not already in the cache.
+     *
+     * @param pattern the string pattern
+     * @return the compiled pattern
+     * @see PatternBuilder#build(String)
+     */
+    public Pattern get(String pattern)
+    {
+        return get(pattern, 0);
+    }
+
+    /**
+     * Get the pattern corresponding to the given string and flags, building it if it's not already in the cache.
+     *
+     * @param pattern the string pattern
+     * @param flags the flags changing the syntax of the string pattern
+     * @return the compiled pattern
+     * @see PatternBuilder#build(String, int)
+     */
+    public Pattern get(String pattern, int flags)
+    {
+        Key key = new Key(pattern, flags);
+        synchronized (patterns) {
+            Pattern cachedPattern = patterns.get(key);
+            if (cachedPattern != null) {
+                return cachedPattern;
+            }
+        }
+
+        // Don't hold the cache lock while compiling
+        Pattern compiledPattern = patternBuilder.build(pattern, flags);
+
+        synchronized (patterns) {
+            Pattern cachedPattern = patterns.putIfAbsent(key, compiledPattern);
+            return (cachedPattern != null) ? cachedPattern : compiledPattern;
+        }
+    }
+
+    /**
+     * @return the number of patterns currently in the cache
+     */
+    public int size()
+    {
+        synchronized (patterns) {
+            return patterns.size();
+        }
+    }
+
+    /**
+     * Remove every pattern from the cache.
+     */
+    public void clear()
+    {
+        synchronized (patterns) {
+            patterns.clear();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.contrib.xdom.regex.internal.AlternativeBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordLiteral;
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Binary form of a compiled {@link Pattern}, see {@link Pattern#write(DataOutput)}. The form holds everything that is
+ * computed when building a pattern: the primary block pattern position, the literals of the word patterns and the
+ * compiled program of the patterns that are not fixed-length, so that reading a pattern neither parses the string
+ * pattern nor compiles the word regular expressions.
+ * <p>
+ * A pattern is written as:
+ * <ul>
+ * <li>a magic number and the version of the form</li>
+ * <li>whether the pattern is fixed-length</li>
+ * <li>its block patterns, see {@link Pattern#getBlockPatterns()}</li>
+ * <li>the position of its primary block pattern when it's fixed-length, its program otherwise</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class PatternSerializer
+{
+    private static final int MAGIC = 0x58444f4d;
+
+    private static final int VERSION = 1;
+
+    private static final int WORD = 0;
+
+    private static final int SYMBOL = 1;
+
+    private static final int SPACE = 2;
+
+    private static final int ALTERNATIVE = 3;
+
+    private static final int NO_LITERAL = -1;
+
+    private PatternSerializer()
+    {
+    }
+
+    /**
+     * @param pattern the pattern to write
+     * @param output where to write the pattern
+     * @throws IOException if the pattern can't be written
+     */
+    static void write(Pattern pattern, DataOutput output) throws IOException
+    {
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.writeBoolean(pattern.isFixedLength());
+
+        List<BlockPattern<? extends Block>> blockPatterns = pattern.getBlockPatterns();
+        output.writeInt(blockPatterns.size());
+        for (BlockPattern<? extends Block> blockPattern : blockPatterns) {
+            writeBlockPattern(blockPattern, output);
+        }
+
+        if (pattern.isFixedLength()) {
+            output.writeInt(pattern.getPrimaryBlockPatternPosition());
+        } else {
+            pattern.getProgram().write(output, blockPattern -> indexOf(blockPatterns, blockPattern));
+        }
+    }
+
+    /**
+     * @param input where to read the pattern from
+     * @return the pattern
+     * @throws IOException if the pattern can't be read or is not valid
+     */
+    static Pattern read(DataInput input) throws IOException
+    {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a serialized pattern");
+        }
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported serialized pattern version [%d]", version));
+        }
+        boolean isFixedLength = input.readBoolean();
+
+        int size = input.readInt();
+        if (size <= 0) {
+            throw new IOException(String.format("Invalid number of block patterns [%d]", size));
+        }
+        List<BlockPattern<? extends Block>> blockPatterns = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            blockPatterns.add(readBlockPattern(input));
+        }
+
+        try {
+            if (isFixedLength) {
+                int primaryPosition = input.readInt();
+                if (primaryPosition < 0 || primaryPosition >= size) {
+                    throw new IOException(
+                        String.format("Invalid primary block pattern position [%d]", primaryPosition));
+                }
+                return new Pattern(blockPatterns, primaryPosition);
+            } else {
+                return new Pattern(BlockProgram.read(input, blockPatterns));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid serialized pattern", e);
+        }
+    }
+
+    private static int indexOf(List<BlockPattern<? extends Block>> blockPatterns,
+        BlockPattern<? extends Block> blockPattern)
+    {
+        // Block patterns are compared by identity, as they don't define equality
+        for (int i = 0; i < blockPatterns.size(); i++) {
+            if (blockPatterns.get(i) == blockPattern) {
+                return i;
+            }
+        }
+
+        throw new IllegalStateException(String.format("Unknown block pattern [%s]", blockPattern));
+    }
+
+    private static void writeBlockPattern(BlockPattern<? extends Block> blockPattern, DataOutput output)
+        throws IOException
+    {
+        if (blockPattern instanceof WordBlockPattern) {
+            WordBlockPattern wordBlockPattern = (WordBlockPattern) blockPattern;
+            output.writeByte(WORD);
+            output.writeUTF(wordBlockPattern.getStringPattern());
+            output.writeUTF(wordBlockPattern.getLiteralPrefix());
+            WordLiteral literal = wordBlockPattern.getLiteral();
+            if (literal != null) {
+                output.writeByte(literal.getKind().ordinal());
+                output.writeUTF(literal.getLiteral());
+            } else {
+                output.writeByte(NO_LITERAL);
+            }
+        } else if (blockPattern instanceof SpecialSymbolBlockPattern) {
+            output.writeByte(SYMBOL);
+            output.writeChar(((SpecialSymbolBlockPattern) blockPattern).getSymbol());
+        } else if (blockPattern instanceof SpaceBlockPattern) {
+            output.writeByte(SPACE);
+        } else if (blockPattern instanceof AlternativeBlockPattern) {
+            List<BlockPattern<? extends Block>> alternatives =
+                ((AlternativeBlockPattern) blockPattern).getAlternatives();
+            output.writeByte(ALTERNATIVE);
+            output.writeInt(alternatives.size());
+            for (BlockPattern<? extends Block> alternative : alternatives) {
+                writeBlockPattern(alternative, output);
+            }
+        } else {
+            throw new NotSerializableException(blockPattern.getClass().getName());
+        }
+    }
+
+    private static BlockPattern<? extends Block> readBlockPattern(DataInput input) throws IOException
+    {
+        int type = input.readByte();
+        switch (type) {
+            case WORD:
+                String stringPattern = input.readUTF();
+                String literalPrefix = input.readUTF();
+                int literalKind = input.readByte();
+                WordLiteral literal = null;
+                if (literalKind != NO_LITERAL) {
+                    if (literalKind < 0 || literalKind >= WordLiteral.Kind.values().length) {
+                        throw new IOException(String.format("Invalid word literal kind [%d]", literalKind));
+                    }
+                    literal = WordLiteral.of(WordLiteral.Kind.values()[literalKind], input.readUTF());
+                }
+                return new WordBlockPattern(stringPattern, literal, literalPrefix);
+            case SYMBOL:
+                return new SpecialSymbolBlockPattern(input.readChar());
+            case SPACE:
+                return new SpaceBlockPattern();
+            case ALTERNATIVE:
+                int size = input.readInt();
+                if (size < 0) {
+                    throw new IOException(String.format("Invalid number of alternatives [%d]", size));
+                }
+                List<BlockPattern<? extends Block>> alternatives = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    alternatives.add(readBlockPattern(input));
+                }
+                return new AlternativeBlockPattern(alternatives);
+            default:
+                throw new IOException(String.format("Invalid block pattern type [%d]", type));
+        }
+    }
+}
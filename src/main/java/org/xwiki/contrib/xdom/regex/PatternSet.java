@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordLiteral;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * A set of {@link Pattern} that can be matched against a block tree in a single traversal. The patterns are indexed
+ * by their primary block pattern (block type, symbol, literal word or literal word prefix) so that only the patterns
+ * that can possibly match are tried on each block.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PatternSet
+{
+    private final List<Pattern> patterns;
+
+    private final List<Pattern> spacePatterns = new ArrayList<>();
+
+    private final List<Pattern> anySymbolPatterns = new ArrayList<>();
+
+    private final Map<Character, List<Pattern>> symbolPatterns = new HashMap<>();
+
+    private final List<Pattern> anyWordPatterns = new ArrayList<>();
+
+    private final Map<Character, List<Pattern>> wordPatterns = new HashMap<>();
+
+    /**
+     * The patterns that may match a given word, for the words that are the exact literal of a word pattern.
+     */
+    private final Map<String, List<Pattern>> literalWordPatterns = new HashMap<>();
+
+    private final List<Pattern> otherPatterns = new ArrayList<>();
+
+    /**
+     * The automaton used to scan block trees, built the first time it's needed, see {@link #getAutomaton()}.
+     */
+    private volatile BlockAutomaton automaton;
+
+    /**
+     * Build a new pattern set.
+     *
+     * @param patterns the patterns of the set
+     */
+    public PatternSet(Collection<Pattern> patterns)
+    {
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+
+        // Create the keyed lists first so that patterns that apply to every key can be added to all of them while
+        // keeping the order in which the patterns were given
+        for (Pattern pattern : this.patterns) {
+            BlockPattern<? extends Block> primaryBlockPattern = pattern.getPrimaryBlockPattern();
+            if (primaryBlockPattern instanceof SpecialSymbolBlockPattern) {
+                char symbol = ((SpecialSymbolBlockPattern) primaryBlockPattern).getSymbol();
+                if (symbol != '\u0000') {
+                    symbolPatterns.putIfAbsent(symbol, new ArrayList<>());
+                }
+            } else if (primaryBlockPattern instanceof WordBlockPattern) {
+                String literal = getExactLiteral((WordBlockPattern) primaryBlockPattern);
+                String prefix = ((WordBlockPattern) primaryBlockPattern).getLiteralPrefix();
+                if (literal != null) {
+                    literalWordPatterns.putIfAbsent(literal, new ArrayList<>());
+                } else if (!prefix.isEmpty()) {
+                    wordPatterns.putIfAbsent(prefix.charAt(0), new ArrayList<>());
+                }
+            }
+        }
+
+        for (Pattern pattern : this.patterns) {
+            index(pattern);
+        }
+    }
+
+    /**
+     * @return the literal that a word should be equal to in order to be matched, or null if there is no such literal
+     */
+    static String getExactLiteral(WordBlockPattern wordBlockPattern)
+    {
+        WordLiteral literal = wordBlockPattern.getLiteral();
+
+        return (literal != null && literal.getKind() == WordLiteral.Kind.EXACT) ? literal.getLiteral() : null;
+    }
+
+    /**
+     * @return the patterns of the set
+     */
+    public List<Pattern> getPatterns()
+    {
+        return patterns;
+    }
+
+    /**
+     * @return the automaton recognizing all the patterns of the set
+     */
+    private BlockAutomaton getAutomaton()
+    {
+        BlockAutomaton result = automaton;
+        if (result == null) {
+            // Building the automaton twice in concurrent scans is harmless
+            result = new BlockAutomaton(patterns);
+            automaton = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Find every match of every pattern of the set in the given block tree, traversing the tree only once. Matches
+     * are reported in document order; for each pattern, a match that overlaps a previous match of the same pattern
+     * is skipped. See {@link Pattern#findAll(Block)}.
+     *
+     * @param root the root of the block tree to scan
+     * @return a stream of the matching {@link Matcher}, see {@link Matcher#getPattern()} to get the matched pattern
+     */
+    public Stream<Matcher> findAll(Block root)
+    {
+        Iterator<Matcher> matchers = new MatcherIterator(root, this::getCandidatePatterns, getAutomaton());
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(matchers, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Find every match of every pattern of the set in the given block tree, scanning the lists of siblings of the
+     * tree in parallel on the given executor. See {@link Pattern#findAllParallel(Block, Executor)}.
+     *
+     * @param root the root of the block tree to scan
+     * @param executor the executor running the scan tasks
+     * @return the matching {@link Matcher}, in document order
+     */
+    public List<Matcher> findAllParallel(Block root, Executor executor)
+    {
+        return new ParallelMatchFinder(this::getCandidatePatterns, getAutomaton(), executor).findAll(root);
+    }
+
+    /**
+     * @param block a block
+     * @return the patterns of the set whose primary block pattern may accept the given block
+     */
+    List<Pattern> getCandidatePatterns(Block block)
+    {
+        if (block instanceof WordBlock) {
+            String word = ((WordBlock) block).getWord();
+            List<Pattern> candidates = literalWordPatterns.get(word);
+            if (candidates == null) {
+                candidates =
+                    word.isEmpty() ? anyWordPatterns : wordPatterns.getOrDefault(word.charAt(0), anyWordPatterns);
+            }
+            return candidates;
+        } else if (block instanceof SpecialSymbolBlock) {
+            return symbolPatterns.getOrDefault(((SpecialSymbolBlock) block).getSymbol(), anySymbolPatterns);
+        } else if (block instanceof SpaceBlock) {
+            return spacePatterns;
+        } else {
+            return otherPatterns;
+        }
+    }
+
+    private void index(Pattern pattern)
+    {
+        BlockPattern<? extends Block> primaryBlockPattern = pattern.getPrimaryBlockPattern();
+
+        if (primaryBlockPattern instanceof SpecialSymbolBlockPattern) {
+            char symbol = ((SpecialSymbolBlockPattern) primaryBlockPattern).getSymbol();
+            if (symbol == '\u0000') {
+                anySymbolPatterns.add(pattern);
+                symbolPatterns.values().forEach(list -> list.add(pattern));
+            } else {
+                symbolPatterns.get(symbol).add(pattern);
+            }
+        } else if (primaryBlockPattern instanceof WordBlockPattern) {
+            index(pattern, (WordBlockPattern) primaryBlockPattern);
+        } else if (primaryBlockPattern instanceof SpaceBlockPattern) {
+            spacePatterns.add(pattern);
+        } else {
+            // Unknown kind of block pattern: try it everywhere
+            spacePatterns.add(pattern);
+            anySymbolPatterns.add(pattern);
+            symbolPatterns.values().forEach(list -> list.add(pattern));
+            anyWordPatterns.add(pattern);
+            wordPatterns.values().forEach(list -> list.add(pattern));
+            literalWordPatterns.values().forEach(list -> list.add(pattern));
+            otherPatterns.add(pattern);
+        }
+    }
+
+    private void index(Pattern pattern, WordBlockPattern primaryBlockPattern)
+    {
+        String literal = getExactLiteral(primaryBlockPattern);
+        String prefix = primaryBlockPattern.getLiteralPrefix();
+
+        if (literal != null) {
+            // Only the words equal to the literal can match
+            literalWordPatterns.get(literal).add(pattern);
+        } else {
+            if (prefix.isEmpty()) {
+                anyWordPatterns.add(pattern);
+                wordPatterns.values().forEach(list -> list.add(pattern));
+            } else {
+                wordPatterns.get(prefix.charAt(0)).add(pattern);
+            }
+
+            // The words equal to a literal are only looked up in the literal lists
+            literalWordPatterns.forEach((word, list) -> {
+                if (word.startsWith(prefix)) {
+                    list.add(pattern);
+                }
+            });
+        }
+    }
+}
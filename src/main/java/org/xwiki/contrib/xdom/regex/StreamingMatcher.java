@@ -0,0 +1,593 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.listener.Format;
+import org.xwiki.rendering.listener.HeaderLevel;
+import org.xwiki.rendering.listener.Listener;
+import org.xwiki.rendering.listener.ListType;
+import org.xwiki.rendering.listener.MetaData;
+import org.xwiki.rendering.listener.WrappingListener;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.syntax.Syntax;
+
+/**
+ * A {@link Listener} matching a pattern against the rendering events it receives, without building any XDOM: it can
+ * be given directly to a {@link org.xwiki.rendering.parser.StreamParser}. The last word, space and special symbol
+ * events are kept in a sliding window of the length of the pattern, which is matched every time a new event is
+ * received. Any other event resets the window since it would end a list of sibling blocks in the equivalent XDOM, so
+ * the matches are the same as the ones of {@link Pattern#findAll(Block)} on the parsed XDOM, and the memory used does
+ * not depend on the size of the document.
+ * <p>
+ * When the pattern is not {@link Pattern#isFixedLength() fixed-length}, the window is as long as the maximum length of
+ * the pattern, and a match is reported once enough events have been received after its first block to know where it
+ * ends. If the length of the pattern is not bounded, the window holds every word, space and special symbol received
+ * since the last other event.
+ * <p>
+ * Every match is given to a callback, through a {@link Matcher} that is reused for the next matches: it must not be
+ * kept after the callback returns. The matched blocks are not part of any XDOM, so {@link Matcher#replace(Block)}
+ * cannot be used. A match overlapping a previous match is skipped. The events can also be forwarded to a wrapped
+ * listener, for example to render the document while it is being matched. A streaming matcher is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class StreamingMatcher extends WrappingListener
+{
+    private final Pattern pattern;
+
+    private final Consumer<Matcher> callback;
+
+    private final Matcher matcher;
+
+    private final BlockPattern<? extends Block> primaryBlockPattern;
+
+    private final int primaryPosition;
+
+    private final int length;
+
+    /**
+     * The last received blocks, from {@link #start} to {@link #size}. The array is twice as long as the pattern so
+     * that the window only has to be shifted back to the start of the array once every {@link #length} blocks.
+     */
+    private Block[] window;
+
+    /**
+     * The index of the first block that may still be matched, when the pattern is not fixed-length.
+     */
+    private int start;
+
+    private int size;
+
+    /**
+     * Build a new streaming matcher that doesn't forward the events it receives.
+     *
+     * @param pattern the pattern to match
+     * @param callback the callback to call with each match
+     */
+    public StreamingMatcher(Pattern pattern, Consumer<Matcher> callback)
+    {
+        this(pattern, callback, null);
+    }
+
+    /**
+     * Build a new streaming matcher.
+     *
+     * @param pattern the pattern to match
+     * @param callback the callback to call with each match
+     * @param listener the listener to forward the events to, or null
+     */
+    public StreamingMatcher(Pattern pattern, Consumer<Matcher> callback, Listener listener)
+    {
+        this.pattern = pattern;
+        this.callback = callback;
+        this.matcher = pattern.matcher(true);
+        this.primaryBlockPattern = pattern.getPrimaryBlockPattern();
+        this.primaryPosition = pattern.getPrimaryBlockPatternPosition();
+        this.length = pattern.getMaxLength();
+        this.window = new Block[2 * Math.max(this.length, pattern.getMinLength())];
+        setWrappedListener(listener);
+    }
+
+    /**
+     * @return the pattern matched by this listener
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    @Override
+    public void onWord(String word)
+    {
+        super.onWord(word);
+        push(new WordBlock(word));
+    }
+
+    @Override
+    public void onSpace()
+    {
+        super.onSpace();
+        push(new SpaceBlock());
+    }
+
+    @Override
+    public void onSpecialSymbol(char symbol)
+    {
+        super.onSpecialSymbol(symbol);
+        push(new SpecialSymbolBlock(symbol));
+    }
+
+    @Override
+    public void beginDocument(MetaData metadata)
+    {
+        breakSequence();
+        super.beginDocument(metadata);
+    }
+
+    @Override
+    public void endDocument(MetaData metadata)
+    {
+        breakSequence();
+        super.endDocument(metadata);
+    }
+
+    @Override
+    public void beginMetaData(MetaData metadata)
+    {
+        breakSequence();
+        super.beginMetaData(metadata);
+    }
+
+    @Override
+    public void endMetaData(MetaData metadata)
+    {
+        breakSequence();
+        super.endMetaData(metadata);
+    }
+
+    @Override
+    public void beginGroup(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginGroup(parameters);
+    }
+
+    @Override
+    public void endGroup(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endGroup(parameters);
+    }
+
+    @Override
+    public void beginFormat(Format format, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginFormat(format, parameters);
+    }
+
+    @Override
+    public void endFormat(Format format, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endFormat(format, parameters);
+    }
+
+    @Override
+    public void beginParagraph(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginParagraph(parameters);
+    }
+
+    @Override
+    public void endParagraph(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endParagraph(parameters);
+    }
+
+    @Override
+    public void beginList(ListType type, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginList(type, parameters);
+    }
+
+    @Override
+    public void endList(ListType type, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endList(type, parameters);
+    }
+
+    @Override
+    public void beginDefinitionList(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginDefinitionList(parameters);
+    }
+
+    @Override
+    public void endDefinitionList(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endDefinitionList(parameters);
+    }
+
+    @Override
+    public void beginListItem()
+    {
+        breakSequence();
+        super.beginListItem();
+    }
+
+    @Override
+    public void beginListItem(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginListItem(parameters);
+    }
+
+    @Override
+    public void endListItem()
+    {
+        breakSequence();
+        super.endListItem();
+    }
+
+    @Override
+    public void endListItem(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endListItem(parameters);
+    }
+
+    @Override
+    public void beginDefinitionTerm()
+    {
+        breakSequence();
+        super.beginDefinitionTerm();
+    }
+
+    @Override
+    public void endDefinitionTerm()
+    {
+        breakSequence();
+        super.endDefinitionTerm();
+    }
+
+    @Override
+    public void beginDefinitionDescription()
+    {
+        breakSequence();
+        super.beginDefinitionDescription();
+    }
+
+    @Override
+    public void endDefinitionDescription()
+    {
+        breakSequence();
+        super.endDefinitionDescription();
+    }
+
+    @Override
+    public void beginTable(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginTable(parameters);
+    }
+
+    @Override
+    public void endTable(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endTable(parameters);
+    }
+
+    @Override
+    public void beginTableRow(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginTableRow(parameters);
+    }
+
+    @Override
+    public void endTableRow(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endTableRow(parameters);
+    }
+
+    @Override
+    public void beginTableCell(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginTableCell(parameters);
+    }
+
+    @Override
+    public void endTableCell(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endTableCell(parameters);
+    }
+
+    @Override
+    public void beginTableHeadCell(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginTableHeadCell(parameters);
+    }
+
+    @Override
+    public void endTableHeadCell(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endTableHeadCell(parameters);
+    }
+
+    @Override
+    public void beginSection(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginSection(parameters);
+    }
+
+    @Override
+    public void endSection(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endSection(parameters);
+    }
+
+    @Override
+    public void beginHeader(HeaderLevel level, String id, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginHeader(level, id, parameters);
+    }
+
+    @Override
+    public void endHeader(HeaderLevel level, String id, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endHeader(level, id, parameters);
+    }
+
+    @Override
+    public void beginMacroMarker(String name, Map<String, String> parameters, String content, boolean isInline)
+    {
+        breakSequence();
+        super.beginMacroMarker(name, parameters, content, isInline);
+    }
+
+    @Override
+    public void endMacroMarker(String name, Map<String, String> parameters, String content, boolean isInline)
+    {
+        breakSequence();
+        super.endMacroMarker(name, parameters, content, isInline);
+    }
+
+    @Override
+    public void beginQuotation(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginQuotation(parameters);
+    }
+
+    @Override
+    public void endQuotation(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endQuotation(parameters);
+    }
+
+    @Override
+    public void beginQuotationLine()
+    {
+        breakSequence();
+        super.beginQuotationLine();
+    }
+
+    @Override
+    public void endQuotationLine()
+    {
+        breakSequence();
+        super.endQuotationLine();
+    }
+
+    @Override
+    public void beginFigure(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginFigure(parameters);
+    }
+
+    @Override
+    public void endFigure(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endFigure(parameters);
+    }
+
+    @Override
+    public void beginFigureCaption(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginFigureCaption(parameters);
+    }
+
+    @Override
+    public void endFigureCaption(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endFigureCaption(parameters);
+    }
+
+    @Override
+    public void beginLink(ResourceReference reference, boolean freestanding, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.beginLink(reference, freestanding, parameters);
+    }
+
+    @Override
+    public void endLink(ResourceReference reference, boolean freestanding, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.endLink(reference, freestanding, parameters);
+    }
+
+    @Override
+    public void onNewLine()
+    {
+        breakSequence();
+        super.onNewLine();
+    }
+
+    @Override
+    public void onMacro(String id, Map<String, String> parameters, String content, boolean isInline)
+    {
+        breakSequence();
+        super.onMacro(id, parameters, content, isInline);
+    }
+
+    @Override
+    public void onId(String name)
+    {
+        breakSequence();
+        super.onId(name);
+    }
+
+    @Override
+    public void onHorizontalLine(Map<String, String> parameters)
+    {
+        breakSequence();
+        super.onHorizontalLine(parameters);
+    }
+
+    @Override
+    public void onEmptyLines(int count)
+    {
+        breakSequence();
+        super.onEmptyLines(count);
+    }
+
+    @Override
+    public void onVerbatim(String content, boolean isInline, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.onVerbatim(content, isInline, parameters);
+    }
+
+    @Override
+    public void onRawText(String content, Syntax syntax)
+    {
+        breakSequence();
+        super.onRawText(content, syntax);
+    }
+
+    @Override
+    public void onImage(ResourceReference reference, boolean freestanding, Map<String, String> parameters)
+    {
+        breakSequence();
+        super.onImage(reference, freestanding, parameters);
+    }
+
+    private void push(Block block)
+    {
+        if (!pattern.isFixedLength()) {
+            pushVariableLength(block);
+            return;
+        }
+
+        if (size == window.length) {
+            System.arraycopy(window, size - length + 1, window, 0, length - 1);
+            Arrays.fill(window, length - 1, size, null);
+            size = length - 1;
+        }
+        window[size++] = block;
+
+        if (size >= length) {
+            int primaryIndex = size - length + primaryPosition;
+            if (primaryBlockPattern.accepts(window[primaryIndex]) && matcher.reset(window, primaryIndex).matches()) {
+                // The next matches cannot overlap this one
+                breakSequence();
+                callback.accept(matcher);
+            }
+        }
+    }
+
+    private void pushVariableLength(Block block)
+    {
+        if (size == window.length) {
+            // Move the blocks that may still be matched to the start of the window, which only has to be enlarged
+            // when the length of the pattern is not bounded
+            int count = size - start;
+            Block[] blocks = (count > window.length / 2) ? new Block[2 * window.length] : window;
+            System.arraycopy(window, start, blocks, 0, count);
+            Arrays.fill(blocks, count, size, null);
+            window = blocks;
+            start = 0;
+            size = count;
+        }
+        window[size++] = block;
+
+        // The match starting at the first block is known once the window is as long as the pattern
+        while (length > 0 && size - start >= length) {
+            matchFirstBlock();
+        }
+    }
+
+    private void matchFirstBlock()
+    {
+        if (primaryBlockPattern.accepts(window[start]) && matcher.reset(window, start, size).matches()) {
+            start += matcher.getMatchedBlockCount();
+            callback.accept(matcher);
+        } else {
+            start++;
+        }
+    }
+
+    private void breakSequence()
+    {
+        if (!pattern.isFixedLength()) {
+            // No more block can be added to the matches of the remaining blocks
+            while (start < size) {
+                matchFirstBlock();
+            }
+            start = 0;
+        }
+
+        Arrays.fill(window, 0, size, null);
+        size = 0;
+    }
+}
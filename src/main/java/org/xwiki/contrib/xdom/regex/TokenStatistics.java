@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.contrib.xdom.regex.internal.AlternativeBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordLiteral;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * Frequencies of the words, special symbols and spaces of one or several block trees, used to estimate how many
+ * blocks a pattern block matches. They allow to choose the most selective primary block pattern of a pattern with
+ * {@link Pattern#optimize(TokenStatistics)}. The statistics can be gathered from a corpus of documents by adding
+ * their block trees, or taken from an {@link XDOMIndex} with {@link XDOMIndex#getStatistics()}. The statistics are
+ * not thread-safe while blocks are added.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class TokenStatistics
+{
+    private final Map<String, Long> wordCounts = new HashMap<>();
+
+    private final Map<Character, Long> symbolCounts = new HashMap<>();
+
+    private long wordCount;
+
+    private long symbolCount;
+
+    private long spaceCount;
+
+    /**
+     * Create empty statistics, see {@link #add(Block)}.
+     */
+    public TokenStatistics()
+    {
+    }
+
+    /**
+     * Gather the statistics of a block tree.
+     *
+     * @param root the root of the block tree
+     */
+    public TokenStatistics(Block root)
+    {
+        add(root);
+    }
+
+    /**
+     * Add the words, special symbols and spaces of a block tree to the statistics.
+     *
+     * @param root the root of the block tree
+     */
+    public void add(Block root)
+    {
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        remainingBlocks.push(root);
+        while (!remainingBlocks.isEmpty()) {
+            Block block = remainingBlocks.pop();
+            if (block instanceof WordBlock) {
+                addWord(((WordBlock) block).getWord(), 1);
+            } else if (block instanceof SpecialSymbolBlock) {
+                addSymbol(((SpecialSymbolBlock) block).getSymbol(), 1);
+            } else if (block instanceof SpaceBlock) {
+                addSpaces(1);
+            }
+
+            remainingBlocks.addAll(block.getChildren());
+        }
+    }
+
+    /**
+     * @param word a word
+     * @param count the number of occurrences of the word to add
+     */
+    void addWord(String word, long count)
+    {
+        wordCounts.merge(word, count, Long::sum);
+        wordCount += count;
+    }
+
+    /**
+     * @param symbol a special symbol
+     * @param count the number of occurrences of the symbol to add
+     */
+    void addSymbol(char symbol, long count)
+    {
+        symbolCounts.merge(symbol, count, Long::sum);
+        symbolCount += count;
+    }
+
+    /**
+     * @param count the number of spaces to add
+     */
+    void addSpaces(long count)
+    {
+        spaceCount += count;
+    }
+
+    /**
+     * @return the number of occurrences of each distinct word
+     */
+    public Map<String, Long> getWordCounts()
+    {
+        return Collections.unmodifiableMap(wordCounts);
+    }
+
+    /**
+     * @param word a word
+     * @return the number of occurrences of the word
+     */
+    public long getWordCount(String word)
+    {
+        return wordCounts.getOrDefault(word, 0L);
+    }
+
+    /**
+     * @return the number of words
+     */
+    public long getWordCount()
+    {
+        return wordCount;
+    }
+
+    /**
+     * @param symbol a special symbol
+     * @return the number of occurrences of the symbol
+     */
+    public long getSymbolCount(char symbol)
+    {
+        return symbolCounts.getOrDefault(symbol, 0L);
+    }
+
+    /**
+     * @return the number of special symbols
+     */
+    public long getSymbolCount()
+    {
+        return symbolCount;
+    }
+
+    /**
+     * @return the number of spaces
+     */
+    public long getSpaceCount()
+    {
+        return spaceCount;
+    }
+
+    /**
+     * Estimate the number of blocks matched by a pattern block. A word pattern is evaluated once for each distinct
+     * word, without reporting regex evaluations to the {@link Instrumentation instrumentation}.
+     *
+     * @param blockPattern a pattern block
+     * @return the number of blocks of the statistics that the pattern block matches, or -1 if the kind of pattern block
+     *     is not known
+     */
+    public long estimateMatches(BlockPattern<? extends Block> blockPattern)
+    {
+        if (blockPattern instanceof SpecialSymbolBlockPattern) {
+            char symbol = ((SpecialSymbolBlockPattern) blockPattern).getSymbol();
+            return (symbol == '\u0000') ? symbolCount : getSymbolCount(symbol);
+        } else if (blockPattern instanceof WordBlockPattern) {
+            return estimateMatches((WordBlockPattern) blockPattern);
+        } else if (blockPattern instanceof SpaceBlockPattern) {
+            return spaceCount;
+        } else if (blockPattern instanceof AlternativeBlockPattern) {
+            long count = 0;
+            for (BlockPattern<? extends Block> alternative
+                : ((AlternativeBlockPattern) blockPattern).getAlternatives()) {
+                long alternativeCount = estimateMatches(alternative);
+                if (alternativeCount < 0) {
+                    return -1;
+                }
+                count += alternativeCount;
+            }
+            return count;
+        } else {
+            return -1;
+        }
+    }
+
+    private long estimateMatches(WordBlockPattern wordBlockPattern)
+    {
+        WordLiteral literal = wordBlockPattern.getLiteral();
+        if (literal != null && literal.getKind() == WordLiteral.Kind.EXACT) {
+            return getWordCount(literal.getLiteral());
+        }
+
+        String literalPrefix = wordBlockPattern.getLiteralPrefix();
+        java.util.regex.Matcher regexMatcher = (literal == null) ? wordBlockPattern.createRegexMatcher() : null;
+        long count = 0;
+        for (Map.Entry<String, Long> entry : wordCounts.entrySet()) {
+            String word = entry.getKey();
+            if (literal != null ? literal.matches(word)
+                : word.startsWith(literalPrefix) && regexMatcher.reset(word).matches()) {
+                count += entry.getValue();
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * Remembers the results of the word regular expressions evaluated during a scan, so that a word that appears many
+ * times in a document, or that is matched by several patterns sharing the same word pattern, is only tested once
+ * against a given regular expression. The results are kept in an open-addressing table keyed by the regular
+ * expression and the word, that grows up to {@link #MAX_CAPACITY} entries; past this size, the results of new words
+ * replace older ones. Only the word patterns that are not {@link WordBlockPattern#isStructural() structural} are
+ * cached, the others being as cheap to evaluate as a lookup. A cache is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class WordMatchCache
+{
+    /**
+     * The maximum number of results kept in the table.
+     */
+    static final int MAX_CAPACITY = 1 << 16;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The maximum number of slots looked at to find a result, before the table is grown.
+     */
+    private static final int MAX_PROBES = 8;
+
+    private String[] regexes;
+
+    private String[] words;
+
+    private boolean[] results;
+
+    /**
+     * Check if a block matches a word pattern, evaluating its regular expression only if the result is not known yet.
+     *
+     * @param wordBlockPattern the word pattern
+     * @param block the block to match
+     * @param regexMatcher a matcher created with {@link WordBlockPattern#createRegexMatcher()} to use for evaluating
+     *     the regular expression, or null to create a new one
+     * @return true if the block matches
+     */
+    boolean test(WordBlockPattern wordBlockPattern, Block block, java.util.regex.Matcher regexMatcher)
+    {
+        if (wordBlockPattern.isStructural() || !wordBlockPattern.accepts(block)) {
+            return test(block, wordBlockPattern, regexMatcher);
+        }
+
+        if (regexes == null) {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        // Identical word patterns are usually shared, see PatternBuilder, so the strings are compared by reference
+        // first
+        String regex = wordBlockPattern.getStringPattern();
+        String word = ((WordBlock) block).getWord();
+        int mask = regexes.length - 1;
+        int hash = hash(regex, word);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (hash + probe) & mask;
+            if (regexes[slot] == null) {
+                return store(slot, regex, word, test(block, wordBlockPattern, regexMatcher));
+            } else if (equals(regexes[slot], regex) && equals(words[slot], word)) {
+                return results[slot];
+            }
+        }
+
+        boolean result = test(block, wordBlockPattern, regexMatcher);
+        if (regexes.length < MAX_CAPACITY) {
+            grow();
+            put(regex, word, result);
+        } else {
+            // Replace the result that would be looked at first
+            store(hash & mask, regex, word, result);
+        }
+
+        return result;
+    }
+
+    private static boolean test(Block block, WordBlockPattern wordBlockPattern, java.util.regex.Matcher regexMatcher)
+    {
+        return (regexMatcher != null) ? wordBlockPattern.test(block, regexMatcher) : wordBlockPattern.test(block);
+    }
+
+    private static int hash(String regex, String word)
+    {
+        int hash = regex.hashCode() * 31 + word.hashCode();
+
+        // Spread the high bits, since the table index only uses the low bits
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String string, String otherString)
+    {
+        return string == otherString || string.equals(otherString);
+    }
+
+    private boolean store(int slot, String regex, String word, boolean result)
+    {
+        regexes[slot] = regex;
+        words[slot] = word;
+        results[slot] = result;
+
+        return result;
+    }
+
+    private void put(String regex, String word, boolean result)
+    {
+        int mask = regexes.length - 1;
+        int hash = hash(regex, word);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (hash + probe) & mask;
+            if (regexes[slot] == null) {
+                store(slot, regex, word, result);
+                return;
+            }
+        }
+
+        // The result is simply dropped if the slots are still taken after growing the table
+    }
+
+    private void allocate(int capacity)
+    {
+        regexes = new String[capacity];
+        words = new String[capacity];
+        results = new boolean[capacity];
+    }
+
+    private void grow()
+    {
+        String[] previousRegexes = regexes;
+        String[] previousWords = words;
+        boolean[] previousResults = results;
+        allocate(previousRegexes.length * 2);
+        for (int i = 0; i < previousRegexes.length; i++) {
+            if (previousRegexes[i] != null) {
+                put(previousRegexes[i], previousWords[i], previousResults[i]);
+            }
+        }
+    }
+}
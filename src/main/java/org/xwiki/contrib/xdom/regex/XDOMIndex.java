@@ -0,0 +1,311 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.xwiki.contrib.xdom.regex.internal.AlternativeBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpaceBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.SpecialSymbolBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.WordLiteral;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * An index of the words, special symbols and spaces of a block tree, allowing to run many patterns against the same
+ * tree without traversing it again: {@link Pattern#findAll(XDOMIndex)} only looks at the indexed blocks that may be
+ * matched by the primary block pattern of the pattern.
+ * <p>
+ * The index has to be kept up to date when the tree is modified, either by using {@link #replace(Matcher, Block)}
+ * instead of {@link Matcher#replace(Block)}, or by calling {@link #remove(Block)} and {@link #add(Block)}. Only the
+ * modified blocks are indexed again. An index is not thread-safe.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XDOMIndex
+{
+    private final Block root;
+
+    private final Map<String, BlockSet> wordBlocks = new HashMap<>();
+
+    private final BlockSet allWordBlocks = new BlockSet();
+
+    private final Map<Character, BlockSet> symbolBlocks = new HashMap<>();
+
+    private final BlockSet allSymbolBlocks = new BlockSet();
+
+    private final BlockSet spaceBlocks = new BlockSet();
+
+    /**
+     * Index the given block tree.
+     *
+     * @param root the root of the block tree to index
+     */
+    public XDOMIndex(Block root)
+    {
+        this.root = root;
+
+        add(root);
+    }
+
+    /**
+     * @return the root of the indexed block tree
+     */
+    public Block getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * @param word a word
+     * @return the indexed {@link WordBlock} having the given word, in the order in which they were indexed; the
+     *     returned list is a snapshot that doesn't change when the index is updated
+     */
+    public List<Block> getWordBlocks(String word)
+    {
+        BlockSet blocks = wordBlocks.get(word);
+
+        return (blocks != null) ? blocks.toList() : Collections.emptyList();
+    }
+
+    /**
+     * @param symbol a symbol
+     * @return the indexed {@link SpecialSymbolBlock} having the given symbol, in the order in which they were
+     *     indexed; the returned list is a snapshot that doesn't change when the index is updated
+     */
+    public List<Block> getSymbolBlocks(char symbol)
+    {
+        BlockSet blocks = symbolBlocks.get(symbol);
+
+        return (blocks != null) ? blocks.toList() : Collections.emptyList();
+    }
+
+    /**
+     * @return the indexed {@link SpaceBlock}, in the order in which they were indexed; the returned list is a
+     *     snapshot that doesn't change when the index is updated
+     */
+    public List<Block> getSpaceBlocks()
+    {
+        return spaceBlocks.toList();
+    }
+
+    /**
+     * @return the frequencies of the indexed words, special symbols and spaces, for example to
+     *     {@link Pattern#optimize(TokenStatistics) optimize} the patterns run against the index
+     */
+    public TokenStatistics getStatistics()
+    {
+        TokenStatistics statistics = new TokenStatistics();
+        for (Map.Entry<String, BlockSet> entry : wordBlocks.entrySet()) {
+            if (entry.getValue().size() > 0) {
+                statistics.addWord(entry.getKey(), entry.getValue().size());
+            }
+        }
+        for (Map.Entry<Character, BlockSet> entry : symbolBlocks.entrySet()) {
+            if (entry.getValue().size() > 0) {
+                statistics.addSymbol(entry.getKey(), entry.getValue().size());
+            }
+        }
+        statistics.addSpaces(spaceBlocks.size());
+
+        return statistics;
+    }
+
+    /**
+     * Replace the blocks of a match and update the index accordingly. See {@link Matcher#replace(Block)}.
+     *
+     * @param matcher a match found in the indexed tree
+     * @param replacement block to use as replacement
+     */
+    public void replace(Matcher matcher, Block replacement)
+    {
+        for (int i = 0; i < matcher.getMatchedBlockCount(); i++) {
+            remove(matcher.getMatchedBlock(i));
+        }
+
+        matcher.replace(replacement);
+
+        add(replacement);
+    }
+
+    /**
+     * Index a block and its descendants, for example after adding them to the tree.
+     *
+     * @param block the block to index
+     */
+    public void add(Block block)
+    {
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        remainingBlocks.push(block);
+        while (!remainingBlocks.isEmpty()) {
+            Block currentBlock = remainingBlocks.pop();
+            update(currentBlock, true);
+
+            List<Block> children = currentBlock.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                remainingBlocks.push(children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Remove a block and its descendants from the index, for example before removing them from the tree.
+     *
+     * @param block the block to remove from the index
+     */
+    public void remove(Block block)
+    {
+        Deque<Block> remainingBlocks = new ArrayDeque<>();
+        remainingBlocks.push(block);
+        while (!remainingBlocks.isEmpty()) {
+            Block currentBlock = remainingBlocks.pop();
+            update(currentBlock, false);
+
+            remainingBlocks.addAll(currentBlock.getChildren());
+        }
+    }
+
+    /**
+     * Find the matches of a pattern, only evaluating the indexed blocks that may be matched by its primary block
+     * pattern. The candidate blocks are grouped by parent and the matches are returned parent by parent, in the order
+     * of the siblings for a given parent. As with {@link Pattern#findAll(Block)}, overlapping matches are skipped.
+     *
+     * @param pattern the pattern to look for
+     * @return the matches
+     */
+    List<Matcher> findAll(Pattern pattern)
+    {
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        long start = (metrics != null) ? System.nanoTime() : 0L;
+
+        List<Block> candidates = getCandidates(pattern.getPrimaryBlockPattern());
+
+        // Group the candidates by parent, keeping the order in which the parents are found
+        List<Block> parents = new ArrayList<>();
+        Map<Block, List<Block>> parentCandidates = new IdentityHashMap<>();
+        for (Block candidate : candidates) {
+            parentCandidates.computeIfAbsent(candidate.getParent(), parent -> {
+                parents.add(parent);
+                return new ArrayList<>();
+            }).add(candidate);
+        }
+
+        List<Pattern> candidatePatterns = Collections.singletonList(pattern);
+        MatchFinder matchFinder = new MatchFinder(block -> candidatePatterns);
+        List<Matcher> matches = new ArrayList<>();
+        for (Block parent : parents) {
+            List<Block> siblingCandidates = parentCandidates.get(parent);
+            Block[] children =
+                (parent != null) ? parent.getChildren().toArray(new Block[0]) : siblingCandidates.toArray(new Block[0]);
+            BlockSiblings siblings = new BlockSiblings(children);
+            for (int index : getSortedIndexes(children, siblingCandidates)) {
+                siblings.index = index;
+                matchFinder.find(siblings, matches::add);
+            }
+        }
+
+        if (metrics != null) {
+            metrics.onScan(System.nanoTime() - start);
+        }
+
+        return matches;
+    }
+
+    private List<Block> getCandidates(BlockPattern<? extends Block> primaryBlockPattern)
+    {
+        if (primaryBlockPattern instanceof AlternativeBlockPattern) {
+            // The alternatives may accept the same blocks
+            BlockSet candidates = new BlockSet();
+            for (BlockPattern<? extends Block> alternative
+                : ((AlternativeBlockPattern) primaryBlockPattern).getAlternatives()) {
+                for (Block candidate : getCandidates(alternative)) {
+                    candidates.add(candidate);
+                }
+            }
+            return candidates.getBlocks();
+        }
+
+        BlockSet candidates;
+        if (primaryBlockPattern instanceof SpecialSymbolBlockPattern) {
+            char symbol = ((SpecialSymbolBlockPattern) primaryBlockPattern).getSymbol();
+            candidates = (symbol == '\u0000') ? allSymbolBlocks : symbolBlocks.get(symbol);
+        } else if (primaryBlockPattern instanceof WordBlockPattern) {
+            WordLiteral literal = ((WordBlockPattern) primaryBlockPattern).getLiteral();
+            candidates = (literal != null && literal.getKind() == WordLiteral.Kind.EXACT)
+                ? wordBlocks.get(literal.getLiteral()) : allWordBlocks;
+        } else if (primaryBlockPattern instanceof SpaceBlockPattern) {
+            candidates = spaceBlocks;
+        } else {
+            throw new IllegalArgumentException(
+                String.format("Unsupported primary block pattern [%s]", primaryBlockPattern));
+        }
+
+        return (candidates != null) ? candidates.getBlocks() : Collections.emptyList();
+    }
+
+    private static int[] getSortedIndexes(Block[] children, List<Block> candidates)
+    {
+        Map<Block, Integer> indexes = new IdentityHashMap<>(children.length);
+        for (int i = 0; i < children.length; i++) {
+            indexes.put(children[i], i);
+        }
+
+        // Skip the candidates that are not children of their parent anymore, which were moved without updating the
+        // index
+        return candidates.stream().map(indexes::get).filter(Objects::nonNull).mapToInt(Integer::intValue).sorted()
+            .toArray();
+    }
+
+    private void update(Block block, boolean isAdded)
+    {
+        if (block instanceof WordBlock) {
+            update(wordBlocks.computeIfAbsent(((WordBlock) block).getWord(), word -> new BlockSet()), block, isAdded);
+            update(allWordBlocks, block, isAdded);
+        } else if (block instanceof SpecialSymbolBlock) {
+            update(symbolBlocks.computeIfAbsent(((SpecialSymbolBlock) block).getSymbol(), symbol -> new BlockSet()),
+                block, isAdded);
+            update(allSymbolBlocks, block, isAdded);
+        } else if (block instanceof SpaceBlock) {
+            update(spaceBlocks, block, isAdded);
+        }
+    }
+
+    private static void update(BlockSet blocks, Block block, boolean isAdded)
+    {
+        if (isAdded) {
+            blocks.add(block);
+        } else {
+            blocks.remove(block);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Pattern block matching a {@link Block} matched by any of several pattern blocks, the first matching one being
+ * used to build the {@link BlockMatcher}. It is used as the primary block pattern of a pattern whose matches may start
+ * with different pattern blocks.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class AlternativeBlockPattern implements BlockPattern<Block>
+{
+    private final List<BlockPattern<? extends Block>> alternatives;
+
+    /**
+     * Create a new {@link AlternativeBlockPattern}.
+     *
+     * @param alternatives the pattern blocks that can match a block
+     */
+    public AlternativeBlockPattern(List<BlockPattern<? extends Block>> alternatives)
+    {
+        this.alternatives = Collections.unmodifiableList(new ArrayList<>(alternatives));
+    }
+
+    /**
+     * @return the pattern blocks that can match a block
+     */
+    public List<BlockPattern<? extends Block>> getAlternatives()
+    {
+        return alternatives;
+    }
+
+    @Override
+    public Class<Block> getBlockClass()
+    {
+        return Block.class;
+    }
+
+    @Override
+    public BlockMatcher matches(Block block)
+    {
+        for (BlockPattern<? extends Block> alternative : alternatives) {
+            if (alternative.test(block)) {
+                return alternative.matches(block);
+            }
+        }
+
+        return BlockMatcher.NO_MATCH;
+    }
+
+    @Override
+    public boolean test(Block block)
+    {
+        return alternatives.stream().anyMatch(alternative -> alternative.test(block));
+    }
+
+    @Override
+    public boolean accepts(Block block)
+    {
+        return alternatives.stream().anyMatch(alternative -> alternative.accepts(block));
+    }
+
+    @Override
+    public boolean isStructural()
+    {
+        return alternatives.stream().allMatch(BlockPattern::isStructural);
+    }
+}
@@ -27,6 +27,20 @@ package org.xwiki.contrib.xdom.regex.internal;
  */
 public class BlockMatcher
 {
+    /**
+     * Shared result for a successful match that holds no other data than the match status.
+     *
+     * @since 1.1
+     */
+    public static final BlockMatcher MATCH = new BlockMatcher(true);
+
+    /**
+     * Shared result for a failed match that holds no other data than the match status.
+     *
+     * @since 1.1
+     */
+    public static final BlockMatcher NO_MATCH = new BlockMatcher(false);
+
     protected boolean match;
 
     /**
@@ -41,4 +41,40 @@ public interface BlockPattern<T extends Block>
      * @return the result of the match
      */
     BlockMatcher matches(Block block);
+
+    /**
+     * Check if the given block matches, without building a {@link BlockMatcher}. This should be preferred to
+     * {@link #matches(Block)} when only the match status is needed.
+     *
+     * @param block the block to match
+     * @return true if the block matches
+     * @since 1.1
+     */
+    default boolean test(Block block)
+    {
+        return matches(block).matches();
+    }
+
+    /**
+     * Cheap structural check telling if the given block could be matched by this pattern, without evaluating the
+     * full pattern. This is used to select candidate blocks when scanning a whole document.
+     *
+     * @param block the block to check
+     * @return true if the block is a candidate for {@link #matches(Block)}
+     * @since 1.1
+     */
+    default boolean accepts(Block block)
+    {
+        return getBlockClass().isInstance(block);
+    }
+
+    /**
+     * @return true if {@link #test(Block)} is as cheap as {@link #accepts(Block)}, i.e. if it only checks the type of
+     *     the block and its properties, without evaluating anything costly such as a regular expression
+     * @since 1.1
+     */
+    default boolean isStructural()
+    {
+        return true;
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Replaces ranges of children of a block, rebuilding the list of children only once whatever the number of
+ * replacements. Calling {@link Block#replaceChild(Block, Block)} or {@link Block#removeBlock(Block)} once per
+ * block would search the list of children each time.
+ * <p>
+ * The replacements must be registered in the order of the children and must not overlap.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class ChildrenReplacer
+{
+    private final Block parent;
+
+    private final List<Block> children;
+
+    private final List<Block> newChildren;
+
+    /**
+     * The index of the first child that has not been copied to the new children yet.
+     */
+    private int nextIndex;
+
+    /**
+     * @param parent the block whose children will be replaced
+     */
+    public ChildrenReplacer(Block parent)
+    {
+        this.parent = parent;
+        this.children = parent.getChildren();
+        this.newChildren = new ArrayList<>(this.children.size());
+    }
+
+    /**
+     * Register the replacement of a range of children.
+     *
+     * @param index the index of the first child to replace
+     * @param count the number of children to replace
+     * @param replacement the block to insert in place of the replaced children, or null to just remove them
+     */
+    public void replace(int index, int count, Block replacement)
+    {
+        if (index < nextIndex) {
+            throw new IllegalArgumentException(
+                String.format("Replacement at index [%d] overlaps a previous replacement", index));
+        }
+
+        newChildren.addAll(children.subList(nextIndex, index));
+        if (replacement != null) {
+            newChildren.add(replacement);
+        }
+
+        for (int i = index; i < index + count; i++) {
+            // Same as what Block#removeBlock() does, unless the child was already moved to another parent, such as
+            // the replacement block itself, which linked it to its new siblings
+            Block child = children.get(i);
+            if (child.getParent() == parent) {
+                child.setPreviousSiblingBlock(null);
+                child.setNextSiblingBlock(null);
+            }
+        }
+
+        nextIndex = index + count;
+    }
+
+    /**
+     * Register the replacement of a range of children.
+     *
+     * @param firstChild the first child to replace
+     * @param count the number of children to replace
+     * @param replacement the block to insert in place of the replaced children, or null to just remove them
+     */
+    public void replace(Block firstChild, int count, Block replacement)
+    {
+        replace(indexOf(firstChild), count, replacement);
+    }
+
+    /**
+     * Apply the registered replacements to the parent block.
+     */
+    public void apply()
+    {
+        newChildren.addAll(children.subList(nextIndex, children.size()));
+        nextIndex = children.size();
+
+        parent.setChildren(newChildren);
+    }
+
+    private int indexOf(Block child)
+    {
+        for (int i = nextIndex; i < children.size(); i++) {
+            if (children.get(i) == child) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Block [%s] is not a remaining child of [%s]", child, parent));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Replaces a sequence of consecutive blocks, in document order, that don't necessarily have the same parent, such as
+ * a phrase that is partly formatted. The replacement is inserted in the closest common ancestor of the blocks, and
+ * the blocks between this ancestor and the first and last replaced blocks are split: they only keep the content that
+ * precedes the first replaced block, or follows the last one, and are removed when nothing is left of them. The
+ * replacement block is then only formatted by the blocks that contain the whole replaced sequence.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class InlineReplacer
+{
+    private InlineReplacer()
+    {
+    }
+
+    /**
+     * Replace a sequence of blocks. Every block that is between the first and the last block in document order should
+     * be part of the sequence, apart from their ancestors.
+     *
+     * @param firstBlock the first block to replace
+     * @param lastBlock the last block to replace
+     * @param replacement the block to insert in place of the replaced blocks, or null to just remove them
+     */
+    public static void replace(Block firstBlock, Block lastBlock, Block replacement)
+    {
+        replace(firstBlock, firstBlock.getParent(), lastBlock, lastBlock.getParent(), replacement);
+    }
+
+    /**
+     * Replace a sequence of blocks whose parents are given, see {@link #replace(Block, Block, Block)}. This is needed
+     * when the replacement block was built from the replaced blocks, which then have it as parent.
+     *
+     * @param firstBlock the first block to replace
+     * @param firstParent the parent of the first block in the tree
+     * @param lastBlock the last block to replace
+     * @param lastParent the parent of the last block in the tree
+     * @param replacement the block to insert in place of the replaced blocks, or null to just remove them
+     */
+    public static void replace(Block firstBlock, Block firstParent, Block lastBlock, Block lastParent,
+        Block replacement)
+    {
+        Block ancestor = getCommonAncestor(firstParent, lastParent);
+
+        Block firstChild = firstBlock;
+        boolean keepFirstChild = false;
+        for (Block parent = firstParent; parent != ancestor; parent = parent.getParent()) {
+            // Only keep the content preceding the first block
+            List<Block> children = parent.getChildren();
+            List<Block> newChildren = new ArrayList<>(children.subList(0, indexOf(children, firstChild)));
+            if (keepFirstChild) {
+                newChildren.add(firstChild);
+            }
+            parent.setChildren(newChildren);
+            firstChild = parent;
+            keepFirstChild = !newChildren.isEmpty();
+        }
+
+        Block lastChild = lastBlock;
+        boolean keepLastChild = false;
+        for (Block parent = lastParent; parent != ancestor; parent = parent.getParent()) {
+            // Only keep the content following the last block
+            List<Block> children = parent.getChildren();
+            List<Block> newChildren = new ArrayList<>();
+            if (keepLastChild) {
+                newChildren.add(lastChild);
+            }
+            newChildren.addAll(children.subList(indexOf(children, lastChild) + 1, children.size()));
+            parent.setChildren(newChildren);
+            lastChild = parent;
+            keepLastChild = !newChildren.isEmpty();
+        }
+
+        List<Block> children = ancestor.getChildren();
+        int firstIndex = indexOf(children, firstChild) + (keepFirstChild ? 1 : 0);
+        int lastIndex = indexOf(children, lastChild) - (keepLastChild ? 1 : 0);
+        ChildrenReplacer replacer = new ChildrenReplacer(ancestor);
+        replacer.replace(firstIndex, lastIndex - firstIndex + 1, replacement);
+        replacer.apply();
+    }
+
+    /**
+     * @return the closest common ancestor of the blocks having the given parents, which may be one of the parents
+     */
+    private static Block getCommonAncestor(Block firstParent, Block lastParent)
+    {
+        List<Block> firstAncestors = new ArrayList<>();
+        for (Block parent = firstParent; parent != null; parent = parent.getParent()) {
+            firstAncestors.add(parent);
+        }
+
+        for (Block parent = lastParent; parent != null; parent = parent.getParent()) {
+            for (Block firstAncestor : firstAncestors) {
+                if (firstAncestor == parent) {
+                    return parent;
+                }
+            }
+        }
+
+        throw new IllegalArgumentException(
+            String.format("Blocks [%s] and [%s] don't belong to the same tree", firstParent, lastParent));
+    }
+
+    private static int indexOf(List<Block> children, Block child)
+    {
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i) == child) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Block [%s] is not a child of its parent", child));
+    }
+}
@@ -39,6 +39,12 @@ public class SpaceBlockPattern implements BlockPattern<SpaceBlock>
     @Override
     public BlockMatcher matches(Block block)
     {
-        return new BlockMatcher(block instanceof SpaceBlock);
+        return test(block) ? BlockMatcher.MATCH : BlockMatcher.NO_MATCH;
+    }
+
+    @Override
+    public boolean test(Block block)
+    {
+        return block instanceof SpaceBlock;
     }
 }
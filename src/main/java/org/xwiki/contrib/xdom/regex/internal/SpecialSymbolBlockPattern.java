@@ -30,14 +30,14 @@ import org.xwiki.rendering.block.SpecialSymbolBlock;
  */
 public class SpecialSymbolBlockPattern implements BlockPattern<SpecialSymbolBlock>
 {
-    private char symbol;
+    private final char symbol;
 
     /**
      * Create a new {@link SpecialSymbolBlockPattern} bound to no particular symbol.
      */
     public SpecialSymbolBlockPattern()
     {
-
+        this('\u0000');
     }
 
     /**
@@ -67,7 +67,19 @@ public class SpecialSymbolBlockPattern implements BlockPattern<SpecialSymbolBloc
     @Override
     public BlockMatcher matches(Block block)
     {
-        return new BlockMatcher(block instanceof SpecialSymbolBlock
-            && (symbol == '\u0000' || symbol == ((SpecialSymbolBlock) block).getSymbol()));
+        return test(block) ? BlockMatcher.MATCH : BlockMatcher.NO_MATCH;
+    }
+
+    @Override
+    public boolean test(Block block)
+    {
+        return accepts(block);
+    }
+
+    @Override
+    public boolean accepts(Block block)
+    {
+        return block instanceof SpecialSymbolBlock
+            && (symbol == '\u0000' || symbol == ((SpecialSymbolBlock) block).getSymbol());
     }
 }
@@ -20,29 +20,91 @@
 package org.xwiki.contrib.xdom.regex.internal;
 
 import org.apache.commons.lang3.StringUtils;
+import org.xwiki.contrib.xdom.regex.Instrumentation;
+import org.xwiki.contrib.xdom.regex.MatchingMetrics;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.WordBlock;
 
 /**
  * Pattern block for {@link WordBlock}.
+ * <p>
+ * When the regular expression is a plain {@link WordLiteral literal}, the words are matched with string comparisons
+ * instead of going through {@link java.util.regex}, and the regular expression is only compiled when regex groups are
+ * needed.
  *
  * @version $Id$
  * @since 1.0
  */
 public class WordBlockPattern implements BlockPattern<WordBlock>
 {
-    private String stringPattern = StringUtils.EMPTY;
+    private static final String REGEX_QUANTIFIERS = "?*+{";
 
-    private java.util.regex.Pattern pattern;
+    private static final String REGEX_METACHARACTERS = "\\.[]()^$|";
+
+    private final String stringPattern;
+
+    /**
+     * The compiled regular expression, see {@link #getPattern()}.
+     */
+    private volatile java.util.regex.Pattern pattern;
+
+    private final String literalPrefix;
+
+    private final WordLiteral literal;
+
+    /**
+     * Build a new {@link WordBlockPattern}.
+     *
+     * @param stringPattern the regular expression that the words should match
+     * @since 1.1
+     */
+    public WordBlockPattern(String stringPattern)
+    {
+        this.stringPattern = stringPattern;
+        this.literal = WordLiteral.parse(stringPattern);
+        this.literalPrefix = (literal != null && literal.getKind() != WordLiteral.Kind.EXACT_IGNORE_CASE
+            && literal.getKind() != WordLiteral.Kind.SUFFIX) ? literal.getLiteral() : computeLiteralPrefix();
+        if (literal == null) {
+            // Report invalid regular expressions right away
+            getPattern();
+        }
+    }
 
     /**
-     * Add a new character to the string pattern.
+     * Build a new {@link WordBlockPattern} whose regular expression has already been analyzed, for example when
+     * reading a serialized pattern. The regular expression is not compiled before it's needed.
      *
-     * @param c the char to add
+     * @param stringPattern the regular expression that the words should match
+     * @param literal the literal of the regular expression, see {@link #getLiteral()}
+     * @param literalPrefix the literal prefix of the regular expression, see {@link #getLiteralPrefix()}
+     * @since 1.1
      */
-    public void addChar(char c)
+    public WordBlockPattern(String stringPattern, WordLiteral literal, String literalPrefix)
     {
-        stringPattern = stringPattern + c;
+        this.stringPattern = stringPattern;
+        this.literal = literal;
+        this.literalPrefix = literalPrefix;
+    }
+
+    private java.util.regex.Pattern getPattern()
+    {
+        java.util.regex.Pattern result = pattern;
+        if (result == null) {
+            // Compiling the regular expression twice in concurrent matches is harmless
+            result = java.util.regex.Pattern.compile(stringPattern);
+            pattern = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the regular expression that the words should match
+     * @since 1.1
+     */
+    public String getStringPattern()
+    {
+        return stringPattern;
     }
 
     @Override
@@ -51,21 +113,127 @@ public class WordBlockPattern implements BlockPattern<WordBlock>
         return WordBlock.class;
     }
 
+    /**
+     * @return the literal characters that any word matched by this pattern starts with, or an empty string if there
+     *     is no such literal prefix
+     * @since 1.1
+     */
+    public String getLiteralPrefix()
+    {
+        return literalPrefix;
+    }
+
+    /**
+     * @return the literal that the words are compared to, or null if the words are matched with a regular
+     *     expression
+     * @since 1.1
+     */
+    public WordLiteral getLiteral()
+    {
+        return literal;
+    }
+
+    @Override
+    public boolean accepts(Block block)
+    {
+        return block instanceof WordBlock && ((WordBlock) block).getWord().startsWith(literalPrefix);
+    }
+
+    @Override
+    public boolean isStructural()
+    {
+        // Comparing strings is as cheap as checking the literal prefix
+        return literal != null;
+    }
+
     @Override
     public BlockMatcher matches(Block block)
     {
         if (block instanceof WordBlock) {
-            return new WordBlockMatcher(pattern.matcher(((WordBlock) block).getWord()));
+            countRegexEvaluation();
+            return new WordBlockMatcher(getPattern().matcher(((WordBlock) block).getWord()));
         } else {
-            return new BlockMatcher(false);
+            return BlockMatcher.NO_MATCH;
+        }
+    }
+
+    @Override
+    public boolean test(Block block)
+    {
+        if (literal != null) {
+            return block instanceof WordBlock && literal.matches(((WordBlock) block).getWord());
         }
+
+        if (!accepts(block)) {
+            return false;
+        }
+        countRegexEvaluation();
+
+        return getPattern().matcher(((WordBlock) block).getWord()).matches();
     }
 
     /**
-     * Build the pattern based on the string created through the successive calls to {@link #addChar(char)}.
+     * Same as {@link #test(Block)}, but reusing the given regex matcher instead of creating a new one.
+     *
+     * @param block the block to match
+     * @param regexMatcher a matcher created with {@link #createRegexMatcher()}, that will be reset
+     * @return true if the block matches
+     * @since 1.1
      */
-    public void buildPattern()
+    public boolean test(Block block, java.util.regex.Matcher regexMatcher)
     {
-        pattern = java.util.regex.Pattern.compile(stringPattern);
+        if (literal != null) {
+            return test(block);
+        }
+
+        if (!accepts(block)) {
+            return false;
+        }
+        countRegexEvaluation();
+
+        return regexMatcher.reset(((WordBlock) block).getWord()).matches();
+    }
+
+    private static void countRegexEvaluation()
+    {
+        MatchingMetrics metrics = Instrumentation.getMetrics();
+        if (metrics != null) {
+            metrics.onRegexEvaluation();
+        }
+    }
+
+    /**
+     * @return a new regex matcher that can be reused through {@link #test(Block, java.util.regex.Matcher)}
+     * @since 1.1
+     */
+    public java.util.regex.Matcher createRegexMatcher()
+    {
+        return getPattern().matcher(StringUtils.EMPTY);
+    }
+
+    private String computeLiteralPrefix()
+    {
+        StringBuilder prefix = new StringBuilder();
+        if (stringPattern.indexOf('|') >= 0) {
+            // An alternation may discard any prefix
+            return StringUtils.EMPTY;
+        }
+
+        int start = stringPattern.startsWith("^") ? 1 : 0;
+        for (int i = start; i < stringPattern.length(); i++) {
+            char c = stringPattern.charAt(i);
+            if (REGEX_QUANTIFIERS.indexOf(c) >= 0) {
+                // The previous character is optional or repeated
+                if (prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            } else if (REGEX_METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            }
+            prefix.append(c);
+        }
+
+        return prefix.toString();
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.internal;
+
+/**
+ * A word regular expression that is simple enough to be evaluated with plain string comparisons, such as
+ * {@code ^foo$}, {@code ^foo.*$}, {@code ^.*foo$} or {@code ^(?i)foo$}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class WordLiteral
+{
+    /**
+     * The way the words are compared to the literal.
+     */
+    public enum Kind
+    {
+        /**
+         * The word should be equal to the literal.
+         */
+        EXACT,
+
+        /**
+         * The word should be equal to the literal, ignoring the case of ASCII characters (as the {@code (?i)} regex
+         * flag does).
+         */
+        EXACT_IGNORE_CASE,
+
+        /**
+         * The word should start with the literal.
+         */
+        PREFIX,
+
+        /**
+         * The word should end with the literal.
+         */
+        SUFFIX
+    }
+
+    private static final String REGEX_METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private static final String CASE_INSENSITIVE_FLAG = "(?i)";
+
+    private static final String ANY_CHARACTERS = ".*";
+
+    private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+
+    private static final int ASCII_LIMIT = 128;
+
+    private final Kind kind;
+
+    private final String literal;
+
+    private WordLiteral(Kind kind, String literal)
+    {
+        this.kind = kind;
+        this.literal = literal;
+    }
+
+    /**
+     * Create a literal that is already known, for example when reading a serialized pattern.
+     *
+     * @param kind the way the words are compared to the literal
+     * @param literal the literal
+     * @return the literal
+     */
+    public static WordLiteral of(Kind kind, String literal)
+    {
+        return new WordLiteral(kind, literal);
+    }
+
+    /**
+     * @param regex a word regular expression
+     * @return the corresponding literal, or null if the regular expression can't be evaluated as a literal
+     */
+    public static WordLiteral parse(String regex)
+    {
+        String body = regex;
+        if (body.startsWith("^")) {
+            body = body.substring(1);
+        }
+        if (body.endsWith("$")) {
+            body = body.substring(0, body.length() - 1);
+        }
+
+        if (body.startsWith(CASE_INSENSITIVE_FLAG)) {
+            String caseInsensitiveBody = body.substring(CASE_INSENSITIVE_FLAG.length());
+            // Only ASCII characters are case insensitive with the (?i) flag
+            return (isLiteral(caseInsensitiveBody) && isAscii(caseInsensitiveBody))
+                ? new WordLiteral(Kind.EXACT_IGNORE_CASE, caseInsensitiveBody) : null;
+        } else if (isLiteral(body)) {
+            return new WordLiteral(Kind.EXACT, body);
+        } else if (body.endsWith(ANY_CHARACTERS) && isLiteral(body.substring(0, body.length() - 2))) {
+            return new WordLiteral(Kind.PREFIX, body.substring(0, body.length() - 2));
+        } else if (body.startsWith(ANY_CHARACTERS) && isLiteral(body.substring(2))) {
+            return new WordLiteral(Kind.SUFFIX, body.substring(2));
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the way the words are compared to the literal
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return the literal
+     */
+    public String getLiteral()
+    {
+        return literal;
+    }
+
+    /**
+     * @param word a word
+     * @return true if the word is matched by the regular expression of the literal
+     */
+    public boolean matches(String word)
+    {
+        switch (kind) {
+            case EXACT:
+                return literal.equals(word);
+            case EXACT_IGNORE_CASE:
+                return equalsIgnoreAsciiCase(word);
+            case PREFIX:
+                return word.startsWith(literal) && isAnyCharacters(word, literal.length(), word.length());
+            default:
+                return word.endsWith(literal) && isAnyCharacters(word, 0, word.length() - literal.length());
+        }
+    }
+
+    /**
+     * @return true if the given part of the word is matched by {@code .*}, which doesn't match line terminators
+     */
+    private static boolean isAnyCharacters(String word, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (LINE_TERMINATORS.indexOf(word.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean equalsIgnoreAsciiCase(String word)
+    {
+        if (word.length() != literal.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < word.length(); i++) {
+            char literalChar = literal.charAt(i);
+            char wordChar = word.charAt(i);
+            if (literalChar != wordChar
+                && (wordChar >= ASCII_LIMIT || toLowerAsciiCase(literalChar) != toLowerAsciiCase(wordChar)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static char toLowerAsciiCase(char c)
+    {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isLiteral(String body)
+    {
+        for (int i = 0; i < body.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(body.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isAscii(String body)
+    {
+        for (int i = 0; i < body.length(); i++) {
+            if (body.charAt(i) >= ASCII_LIMIT) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link BatchMatcher}.
+ *
+ * @version $Id$
+ */
+class BatchMatcherTest
+{
+    private static final int DOCUMENT_COUNT = 50;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    private final PatternSet patterns = new PatternSet(
+        Collections.singletonList(new PatternBuilder().build("^a$ ^[ab]$")));
+
+    /**
+     * The number of documents that were taken from the batch and are not done yet.
+     */
+    private final AtomicInteger pendingDocuments = new AtomicInteger();
+
+    private final AtomicInteger maxPendingDocuments = new AtomicInteger();
+
+    private final AtomicInteger takenDocuments = new AtomicInteger();
+
+    @AfterEach
+    void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void matchAllLikeFindAll() throws InterruptedException
+    {
+        List<XDOM> documents = createDocuments();
+        Map<Integer, List<String>> matches = new ConcurrentHashMap<>();
+
+        int count = new BatchMatcher(this.patterns, this.executor, 4).matchAll(toSuppliers(documents),
+            (index, root, documentMatches) -> {
+                assertSame(documents.get(index), root);
+                matches.put(index, RandomBlocks.describe(documentMatches));
+            });
+
+        assertEquals(DOCUMENT_COUNT, count);
+        assertTrue(matches.values().stream().anyMatch(documentMatches -> !documentMatches.isEmpty()));
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            assertEquals(RandomBlocks.describe(this.patterns.findAll(documents.get(i)).collect(Collectors.toList())),
+                matches.get(i));
+        }
+    }
+
+    @Test
+    void limitPendingDocuments() throws InterruptedException
+    {
+        List<Supplier<Block>> documents = new ArrayList<>();
+        for (Supplier<Block> document : toSuppliers(createDocuments())) {
+            documents.add(() -> {
+                // Let the other documents be taken meanwhile
+                sleep();
+                return document.get();
+            });
+        }
+
+        int count = new BatchMatcher(this.patterns, this.executor, 3).matchAll(documents.stream().map(this::count),
+            (index, root, matches) -> this.pendingDocuments.decrementAndGet());
+
+        assertEquals(DOCUMENT_COUNT, count);
+        assertEquals(DOCUMENT_COUNT, this.takenDocuments.get());
+        assertTrue(this.maxPendingDocuments.get() <= 3, String.valueOf(this.maxPendingDocuments.get()));
+        assertTrue(this.maxPendingDocuments.get() > 1);
+    }
+
+    @Test
+    void stopOnFailure()
+    {
+        List<Supplier<Block>> documents = toSuppliers(createDocuments());
+        IllegalStateException exception = new IllegalStateException("Failed to load the document");
+        documents.set(5, () -> {
+            throw exception;
+        });
+
+        // Scan the documents one after the other on the current thread
+        BatchMatcher batchMatcher = new BatchMatcher(this.patterns, Runnable::run, 1);
+
+        assertSame(exception, assertThrows(IllegalStateException.class,
+            () -> batchMatcher.matchAll(documents.stream().map(this::count), (index, root, matches) -> { })));
+        assertEquals(6, this.takenDocuments.get());
+    }
+
+    @Test
+    void stopOnFailingCallback()
+    {
+        IllegalStateException exception = new IllegalStateException("Failed to handle the matches");
+        BatchMatcher batchMatcher = new BatchMatcher(this.patterns, Runnable::run, 1);
+
+        assertSame(exception, assertThrows(IllegalStateException.class,
+            () -> batchMatcher.matchAll(toSuppliers(createDocuments()).stream().map(this::count),
+                (index, root, matches) -> {
+                    if (index == 2) {
+                        throw exception;
+                    }
+                })));
+        assertEquals(3, this.takenDocuments.get());
+    }
+
+    @Test
+    void stopOnError()
+    {
+        List<Supplier<Block>> documents = toSuppliers(createDocuments());
+        documents.set(0, () -> {
+            throw new StackOverflowError();
+        });
+        BatchMatcher batchMatcher = new BatchMatcher(this.patterns, this.executor, 1);
+
+        // Errors are not given to the failure callback
+        assertThrows(StackOverflowError.class, () -> batchMatcher.matchAll(documents, new DocumentCallback()
+        {
+            @Override
+            public void onMatches(int index, Block root, List<Matcher> matches)
+            {
+            }
+
+            @Override
+            public void onFailure(int index, RuntimeException exception)
+            {
+            }
+        }));
+    }
+
+    @Test
+    void goOnWhenFailureIsHandled() throws InterruptedException
+    {
+        List<Supplier<Block>> documents = toSuppliers(createDocuments());
+        for (int i = 0; i < DOCUMENT_COUNT; i += 10) {
+            documents.set(i, () -> {
+                throw new IllegalStateException();
+            });
+        }
+        List<Integer> failedDocuments = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger matchedDocuments = new AtomicInteger();
+
+        int count = new BatchMatcher(this.patterns, this.executor, 4).matchAll(documents, new DocumentCallback()
+        {
+            @Override
+            public void onMatches(int index, Block root, List<Matcher> matches)
+            {
+                matchedDocuments.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(int index, RuntimeException exception)
+            {
+                failedDocuments.add(index);
+            }
+        });
+
+        assertEquals(DOCUMENT_COUNT, count);
+        assertEquals(DOCUMENT_COUNT - 5, matchedDocuments.get());
+        Collections.sort(failedDocuments);
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), failedDocuments);
+    }
+
+    @Test
+    void throwRejectedExecution()
+    {
+        AtomicInteger executedTasks = new AtomicInteger();
+        BatchMatcher batchMatcher = new BatchMatcher(this.patterns, task -> {
+            if (executedTasks.incrementAndGet() > 3) {
+                throw new RejectedExecutionException();
+            }
+            task.run();
+        }, 2);
+
+        assertThrows(RejectedExecutionException.class,
+            () -> batchMatcher.matchAll(toSuppliers(createDocuments()), (index, root, matches) -> { }));
+        assertEquals(4, executedTasks.get());
+    }
+
+    @Test
+    void rejectInvalidMaxPendingDocuments()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new BatchMatcher(this.patterns, this.executor, 0));
+    }
+
+    @Test
+    void createDefaultExecutor() throws InterruptedException
+    {
+        ExecutorService defaultExecutor = BatchMatcher.createDefaultExecutor();
+        ExecutorService fallbackExecutor = BatchMatcher.createDefaultExecutor("missingExecutorFactory");
+        try {
+            assertTrue(fallbackExecutor instanceof ThreadPoolExecutor);
+            assertEquals(Runtime.getRuntime().availableProcessors(),
+                ((ThreadPoolExecutor) fallbackExecutor).getMaximumPoolSize());
+
+            AtomicInteger executedTasks = new AtomicInteger();
+            defaultExecutor.execute(executedTasks::incrementAndGet);
+            fallbackExecutor.execute(executedTasks::incrementAndGet);
+            defaultExecutor.shutdown();
+            fallbackExecutor.shutdown();
+            assertTrue(defaultExecutor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(fallbackExecutor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(2, executedTasks.get());
+        } finally {
+            defaultExecutor.shutdownNow();
+            fallbackExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void matchAllOnDefaultExecutor() throws InterruptedException
+    {
+        AtomicInteger matchedDocuments = new AtomicInteger();
+
+        assertEquals(DOCUMENT_COUNT, new BatchMatcher(this.patterns).matchAll(toSuppliers(createDocuments()),
+            (index, root, matches) -> matchedDocuments.incrementAndGet()));
+        assertEquals(DOCUMENT_COUNT, matchedDocuments.get());
+    }
+
+    /**
+     * Count the documents taken from the batch, and the ones that are pending.
+     */
+    private Supplier<Block> count(Supplier<Block> document)
+    {
+        this.takenDocuments.incrementAndGet();
+        int pending = this.pendingDocuments.incrementAndGet();
+        this.maxPendingDocuments.accumulateAndGet(pending, Math::max);
+
+        return document;
+    }
+
+    private static List<XDOM> createDocuments()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(25);
+        List<XDOM> documents = new ArrayList<>();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            documents.add(randomBlocks.createDocument());
+        }
+
+        return documents;
+    }
+
+    private static List<Supplier<Block>> toSuppliers(List<XDOM> documents)
+    {
+        return documents.stream().<Supplier<Block>>map(document -> () -> document).collect(Collectors.toList());
+    }
+
+    private static void sleep()
+    {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link BlockAutomaton}, through the scans of fixed-length patterns and pattern sets.
+ *
+ * @version $Id$
+ */
+class BlockAutomatonTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void findAllLikeJavaRegex()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(21);
+        for (int i = 0; i < 1000; i++) {
+            String[] patterns = randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(4));
+            java.util.regex.Pattern regex = java.util.regex.Pattern.compile(patterns[1]);
+            Pattern pattern = this.patternBuilder.build(patterns[0]);
+            String text = randomBlocks.createText(1 + randomBlocks.getRandom().nextInt(100));
+            List<Block> blocks = RandomBlocks.createBlocks(text);
+            XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+
+            assertEquals(RandomBlocks.findAll(regex, text),
+                RandomBlocks.describe(blocks, pattern.findAll(document).collect(Collectors.toList())),
+                patterns[0] + " in [" + text + ']');
+        }
+    }
+
+    @Test
+    void findAllInTrees()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(22);
+        for (int i = 0; i < 500; i++) {
+            Pattern pattern = this.patternBuilder.build(
+                randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(3))[0]);
+            XDOM document = randomBlocks.createDocument();
+
+            List<Matcher> matches = pattern.findAll(document).collect(Collectors.toList());
+            for (Matcher match : matches) {
+                Matcher anchoredMatcher = pattern.getMatcher(
+                    match.getMatchedBlock(pattern.getPrimaryBlockPatternPosition()));
+                assertTrue(anchoredMatcher.matches());
+                assertEquals(match.getMatchedBlocks(), anchoredMatcher.getMatchedBlocks());
+            }
+            assertEquals(RandomBlocks.describe(matches), RandomBlocks.describe(pattern.findAllParallel(document)));
+
+            // The index reports the matches parent by parent
+            List<String> sortedMatches = new ArrayList<>(RandomBlocks.describe(matches));
+            List<String> indexedMatches =
+                RandomBlocks.describe(pattern.findAll(new XDOMIndex(document)).collect(Collectors.toList()));
+            Collections.sort(sortedMatches);
+            Collections.sort(indexedMatches);
+            assertEquals(sortedMatches, indexedMatches);
+        }
+    }
+
+    @Test
+    void findAllPatternsOfSet()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(23);
+        for (int i = 0; i < 300; i++) {
+            List<Pattern> patterns = new ArrayList<>();
+            int patternCount = 1 + randomBlocks.getRandom().nextInt(4);
+            for (int j = 0; j < patternCount; j++) {
+                patterns.add(this.patternBuilder.build(
+                    randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(3))[0]));
+            }
+            PatternSet patternSet = new PatternSet(patterns);
+            XDOM document = randomBlocks.createDocument();
+
+            List<Matcher> matches = patternSet.findAll(document).collect(Collectors.toList());
+            for (Pattern pattern : patterns) {
+                assertEquals(RandomBlocks.describe(pattern.findAll(document).collect(Collectors.toList())),
+                    RandomBlocks.describe(matches.stream().filter(match -> match.getPattern() == pattern)
+                        .collect(Collectors.toList())));
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeout;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link BlockProgram}, through the extended patterns built by {@link PatternBuilder}.
+ *
+ * @version $Id$
+ */
+class BlockProgramTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void findAllLikeJavaRegex()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(16);
+        int variableLengthCount = 0;
+        for (int i = 0; i < 2000; i++) {
+            String[] patterns = randomBlocks.createExtendedPattern();
+            java.util.regex.Pattern regex = java.util.regex.Pattern.compile(patterns[1]);
+            if (regex.matcher("").matches()) {
+                // Patterns matching no block are rejected
+                continue;
+            }
+
+            Pattern pattern = this.patternBuilder.build(patterns[0], PatternBuilder.EXTENDED);
+            if (!pattern.isFixedLength()) {
+                variableLengthCount++;
+            }
+            String text = randomBlocks.createText(1 + randomBlocks.getRandom().nextInt(300));
+            List<Block> blocks = RandomBlocks.createBlocks(text);
+            XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+
+            String message = patterns[0] + " in [" + text + ']';
+            assertEquals(RandomBlocks.findAll(regex, text),
+                RandomBlocks.describe(blocks, pattern.findAll(document).collect(Collectors.toList())), message);
+            assertEquals(RandomBlocks.describe(pattern.findAll(document).collect(Collectors.toList())),
+                RandomBlocks.describe(pattern.findAllParallel(document)), message);
+        }
+
+        assertTrue(variableLengthCount > 0);
+    }
+
+    @Test
+    void matchLikeJavaRegex()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(17);
+        for (int i = 0; i < 500; i++) {
+            String[] patterns = randomBlocks.createExtendedPattern();
+            java.util.regex.Pattern regex = java.util.regex.Pattern.compile(patterns[1]);
+            if (regex.matcher("").matches()) {
+                continue;
+            }
+
+            Pattern pattern = this.patternBuilder.build(patterns[0], PatternBuilder.EXTENDED);
+            String text = randomBlocks.createText(1 + randomBlocks.getRandom().nextInt(40));
+            List<Block> blocks = RandomBlocks.createBlocks(text);
+            // The matcher finds the next blocks through their parent
+            new ParagraphBlock(blocks);
+            // The matched block is the one matching the primary block pattern of fixed-length patterns
+            int position = pattern.getPrimaryBlockPatternPosition();
+            for (int j = 0; j + position < blocks.size(); j++) {
+                java.util.regex.Matcher regexMatcher = regex.matcher(text).region(j, text.length());
+                Matcher matcher = pattern.getMatcher(blocks.get(j + position));
+
+                String message = patterns[0] + " at " + j + " in [" + text + ']';
+                assertEquals(regexMatcher.lookingAt(), matcher.matches(), message);
+                if (matcher.matches()) {
+                    assertEquals(regexMatcher.group(), matcher.getMatchedString(), message);
+                }
+            }
+        }
+    }
+
+    @Test
+    void findAllInLinearTime()
+    {
+        // Every thread used to restart a search at each block, making the search quadratic
+        Pattern pattern = this.patternBuilder.build("(^a$( ^a$)* ^b$|^a$)", PatternBuilder.EXTENDED);
+        List<Block> blocks = RandomBlocks.createBlocks(String.join("", Collections.nCopies(64000, "a ")));
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+
+        long matchCount = assertTimeout(Duration.ofSeconds(10), () -> pattern.findAll(document).count());
+        assertEquals(64000, matchCount);
+    }
+
+    @Test
+    void findAdjacentMatches()
+    {
+        Pattern pattern = this.patternBuilder.build("( |,)", PatternBuilder.EXTENDED);
+        List<Block> blocks = RandomBlocks.createBlocks("a ,, b");
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+
+        assertEquals(4, pattern.findAll(document).count());
+    }
+
+    @Test
+    void rejectInvalidPatterns()
+    {
+        for (String invalidPattern : new String[] { "(^a$", "^a$)", "*", "^a${2", "^a${3,1}", " *", "^a$**" }) {
+            assertThrows(IllegalArgumentException.class,
+                () -> this.patternBuilder.build(invalidPattern, PatternBuilder.EXTENDED), invalidPattern);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link IncrementalMatcher}.
+ *
+ * @version $Id$
+ */
+class IncrementalMatcherTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void updateLikeFindAll()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(22);
+        Random random = randomBlocks.getRandom();
+        for (int i = 0; i < 300; i++) {
+            Pattern pattern;
+            if (random.nextBoolean()) {
+                pattern = this.patternBuilder.build(randomBlocks.createFixedLengthPattern(1 + random.nextInt(3))[0]);
+            } else {
+                pattern = buildExtendedPattern(randomBlocks);
+            }
+            XDOM document = randomBlocks.createDocument();
+            IncrementalMatcher incrementalMatcher = new IncrementalMatcher(pattern, document);
+            assertSameMatches(pattern, document, incrementalMatcher);
+
+            for (int j = 0; j < 20; j++) {
+                // Apply a few edits before each update, so that they are handled together, and give the changed blocks
+                // in any order, possibly several times
+                List<Block> changedBlocks = new ArrayList<>();
+                int editCount = 1 + random.nextInt(3);
+                for (int k = 0; k < editCount; k++) {
+                    edit(randomBlocks, document, changedBlocks);
+                }
+                Collections.shuffle(changedBlocks, random);
+                List<String> previousMatches = RandomBlocks.describe(incrementalMatcher.getMatches());
+
+                List<String> newMatches = RandomBlocks.describe(incrementalMatcher.update(changedBlocks));
+
+                List<String> matches = assertSameMatches(pattern, document, incrementalMatcher);
+                List<String> expectedNewMatches = new ArrayList<>(matches);
+                expectedNewMatches.removeAll(previousMatches);
+                assertEquals(expectedNewMatches, newMatches.stream().sorted(
+                    Comparator.comparingInt(matches::indexOf)).collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    void updateAfterMovingMatchedBlocks()
+    {
+        // The match used to be lost when the new parent of the moved block was updated before its previous parent
+        Pattern pattern = this.patternBuilder.build("^foo$");
+        for (boolean newParentFirst : new boolean[] { true, false }) {
+            Block paragraph = new ParagraphBlock(RandomBlocks.listOf(new WordBlock("foo")));
+            Block previousParent = new GroupBlock(RandomBlocks.listOf(paragraph));
+            Block newParent = new GroupBlock(RandomBlocks.listOf(new ParagraphBlock(RandomBlocks.listOf(
+                new WordBlock("bar")))));
+            XDOM document = new XDOM(RandomBlocks.listOf(previousParent, newParent));
+            IncrementalMatcher incrementalMatcher = new IncrementalMatcher(pattern, document);
+
+            previousParent.setChildren(new ArrayList<>());
+            newParent.setChildren(RandomBlocks.listOf(newParent.getChildren().get(0), paragraph));
+            incrementalMatcher.update(newParentFirst ? Arrays.asList(newParent, previousParent)
+                : Arrays.asList(previousParent, newParent));
+
+            assertEquals(1, incrementalMatcher.getMatches().size());
+            assertSameMatches(pattern, document, incrementalMatcher);
+        }
+    }
+
+    @Test
+    void updateReportsOnlyNewMatches()
+    {
+        List<Pattern> patterns = Arrays.asList(this.patternBuilder.build("^a$ ^b$"),
+            this.patternBuilder.build("^a$ (^b$)+", PatternBuilder.EXTENDED));
+        for (Pattern pattern : patterns) {
+            Block paragraph = new ParagraphBlock(RandomBlocks.createBlocks("a b, a b"));
+            XDOM document = new XDOM(RandomBlocks.listOf(paragraph));
+            IncrementalMatcher incrementalMatcher = new IncrementalMatcher(pattern, document);
+            List<Matcher> matches = incrementalMatcher.getMatches();
+
+            List<Block> children = new ArrayList<>(paragraph.getChildren());
+            children.add(new WordBlock("c"));
+            paragraph.setChildren(children);
+
+            assertEquals(Collections.emptyList(), incrementalMatcher.update(paragraph));
+            assertEquals(matches, incrementalMatcher.getMatches());
+
+            children.addAll(0, RandomBlocks.createBlocks("a b "));
+            paragraph.setChildren(children);
+
+            assertEquals(1, incrementalMatcher.update(paragraph).size());
+            assertEquals(3, incrementalMatcher.getMatches().size());
+            assertSameMatches(pattern, document, incrementalMatcher);
+        }
+    }
+
+    private Pattern buildExtendedPattern(RandomBlocks randomBlocks)
+    {
+        while (true) {
+            try {
+                return this.patternBuilder.build(randomBlocks.createExtendedPattern()[0], PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+            }
+        }
+    }
+
+    /**
+     * Insert, remove or move a random block of the document.
+     */
+    private static void edit(RandomBlocks randomBlocks, XDOM document, List<Block> changedBlocks)
+    {
+        Random random = randomBlocks.getRandom();
+        List<Block> containers = new ArrayList<>();
+        List<Block> inlineBlocks = new ArrayList<>();
+        collect(document, containers, inlineBlocks);
+
+        int edit = random.nextInt(3);
+        if (edit == 0 || inlineBlocks.isEmpty()) {
+            Block container = containers.get(random.nextInt(containers.size()));
+            insert(randomBlocks.createBlock(), container, random);
+            changedBlocks.add(container);
+        } else {
+            Block block = inlineBlocks.get(random.nextInt(inlineBlocks.size()));
+            Block parent = block.getParent();
+            List<Block> children = new ArrayList<>(parent.getChildren());
+            children.removeIf(child -> child == block);
+            parent.setChildren(children);
+            changedBlocks.add(parent);
+
+            if (edit == 2) {
+                // Move the block to a container that is not one of its descendants
+                List<Block> targets = new ArrayList<>();
+                collect(document, targets, new ArrayList<>());
+                Block target = targets.get(random.nextInt(targets.size()));
+                insert(block, target, random);
+                changedBlocks.add(target);
+            }
+        }
+    }
+
+    private static void insert(Block block, Block container, Random random)
+    {
+        List<Block> children = new ArrayList<>(container.getChildren());
+        children.add(random.nextInt(children.size() + 1), block);
+        container.setChildren(children);
+    }
+
+    private static void collect(Block block, List<Block> containers, List<Block> inlineBlocks)
+    {
+        for (Block child : block.getChildren()) {
+            if (child instanceof ParagraphBlock || !child.getChildren().isEmpty()) {
+                containers.add(child);
+            }
+            if (!(child instanceof ParagraphBlock)) {
+                inlineBlocks.add(child);
+            }
+            collect(child, containers, inlineBlocks);
+        }
+    }
+
+    private static List<String> assertSameMatches(Pattern pattern, Block root, IncrementalMatcher incrementalMatcher)
+    {
+        List<String> matches = RandomBlocks.describe(incrementalMatcher.getMatches());
+        assertEquals(RandomBlocks.describe(pattern.findAll(root).collect(Collectors.toList())), matches);
+
+        return matches;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link MatchingStatistics} and {@link Instrumentation}.
+ *
+ * @version $Id$
+ */
+class MatchingStatisticsTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    private final MatchingStatistics statistics = new MatchingStatistics();
+
+    @AfterEach
+    void tearDown()
+    {
+        Instrumentation.setMetrics(null);
+    }
+
+    @Test
+    void countScanEvents()
+    {
+        Instrumentation.setMetrics(this.statistics);
+        assertSame(this.statistics, Instrumentation.getMetrics());
+        Pattern pattern = this.patternBuilder.build("^[ac]$^b$");
+
+        assertEquals(2, pattern.findAll(createDocument()).count());
+
+        // Every block of every list of siblings is a candidate: the root, the paragraph and its 8 children
+        assertEquals(10, this.statistics.getCandidateCount());
+        assertEquals(2, this.statistics.getPrimaryHitCount());
+        assertTrue(this.statistics.getRegexEvaluationCount() > 0);
+        assertEquals(2, this.statistics.getMatchCount());
+        assertEquals(0, this.statistics.getMismatchCount());
+        assertEquals(0, this.statistics.getReplaceCount());
+        assertEquals(1, this.statistics.getScanCount());
+        assertTrue(this.statistics.getTotalScanTime() >= 0);
+
+        assertEquals(2, pattern.scan(createDocument(), matcher -> true));
+        assertEquals(4, this.statistics.getMatchCount());
+        assertEquals(2, this.statistics.getScanCount());
+    }
+
+    @Test
+    void countMatcherEvents()
+    {
+        Instrumentation.setMetrics(this.statistics);
+        Pattern pattern = this.patternBuilder.build("^[ac]$^b$");
+        List<Block> blocks = createDocument().getChildren().get(0).getChildren();
+
+        assertTrue(pattern.getMatcher(blocks.get(0)).matches());
+        assertEquals(1, this.statistics.getRegexEvaluationCount());
+        assertEquals(1, this.statistics.getMatchCount());
+
+        // The last word a is matched, then the word c following it is checked
+        assertFalse(pattern.getMatcher(blocks.get(6)).matches());
+        assertEquals(2, this.statistics.getRegexEvaluationCount());
+        assertEquals(1, this.statistics.getMismatchCount());
+        assertEquals(2D, this.statistics.getMeanMismatchWindowLength(), 0D);
+    }
+
+    @Test
+    void countReplacements()
+    {
+        Instrumentation.setMetrics(this.statistics);
+        Pattern pattern = this.patternBuilder.build("^[ac]$^b$");
+
+        assertEquals(2, pattern.replaceAll(createDocument(), matcher -> new WordBlock("x")));
+        assertEquals(2, this.statistics.getReplaceCount());
+    }
+
+    @Test
+    void computeMeans()
+    {
+        assertEquals(0D, this.statistics.getMeanMismatchWindowLength(), 0D);
+        assertEquals(0D, this.statistics.getMeanScanTime(), 0D);
+
+        this.statistics.onMismatch(2);
+        this.statistics.onMismatch(5);
+        this.statistics.onScan(2000000L);
+        this.statistics.onScan(4000000L);
+
+        assertEquals(3.5D, this.statistics.getMeanMismatchWindowLength(), 0D);
+        assertEquals(6D, this.statistics.getTotalScanTime(), 1E-9);
+        assertEquals(3D, this.statistics.getMeanScanTime(), 1E-9);
+    }
+
+    @Test
+    void reset()
+    {
+        Instrumentation.setMetrics(this.statistics);
+        this.patternBuilder.build("^[ac]$^b$").replaceAll(createDocument(), matcher -> new WordBlock("x"));
+        this.statistics.onMismatch(3);
+
+        this.statistics.reset();
+
+        assertEquals(0, this.statistics.getCandidateCount());
+        assertEquals(0, this.statistics.getPrimaryHitCount());
+        assertEquals(0, this.statistics.getRegexEvaluationCount());
+        assertEquals(0, this.statistics.getMatchCount());
+        assertEquals(0, this.statistics.getMismatchCount());
+        assertEquals(0D, this.statistics.getMeanMismatchWindowLength(), 0D);
+        assertEquals(0, this.statistics.getReplaceCount());
+        assertEquals(0, this.statistics.getScanCount());
+        assertEquals(0D, this.statistics.getTotalScanTime(), 0D);
+    }
+
+    @Test
+    void disableInstrumentation()
+    {
+        Instrumentation.setMetrics(this.statistics);
+        Instrumentation.setMetrics(null);
+        assertNull(Instrumentation.getMetrics());
+
+        Pattern pattern = this.patternBuilder.build("^[ac]$^b$");
+        assertEquals(2, pattern.replaceAll(createDocument(), matcher -> new WordBlock("x")));
+
+        assertEquals(0, this.statistics.getCandidateCount());
+        assertEquals(0, this.statistics.getPrimaryHitCount());
+        assertEquals(0, this.statistics.getRegexEvaluationCount());
+        assertEquals(0, this.statistics.getMatchCount());
+        assertEquals(0, this.statistics.getReplaceCount());
+        assertEquals(0, this.statistics.getScanCount());
+    }
+
+    @Test
+    void registerMBean() throws JMException
+    {
+        ObjectName name = new ObjectName("org.xwiki.contrib.xdom.regex:type=MatchingStatistics,name=test");
+        this.statistics.onScan(1000000L);
+
+        assertEquals(name, this.statistics.register(name));
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ScanCount"));
+        } finally {
+            this.statistics.unregister(name);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    /**
+     * @return a paragraph made of {@code ab ab ac}
+     */
+    private static XDOM createDocument()
+    {
+        List<Block> blocks = new ArrayList<>(Arrays.asList(new WordBlock("a"), new WordBlock("b"), new SpaceBlock(),
+            new WordBlock("a"), new WordBlock("b"), new SpaceBlock(), new WordBlock("a"), new WordBlock("c")));
+
+        return new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+    }
+}
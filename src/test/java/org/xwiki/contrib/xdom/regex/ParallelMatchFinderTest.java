@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link ParallelMatchFinder}.
+ *
+ * @version $Id$
+ */
+class ParallelMatchFinderTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void findAllParallelLikeFindAll()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(9);
+        for (int i = 0; i < 20; i++) {
+            Pattern pattern;
+            if (randomBlocks.getRandom().nextBoolean()) {
+                pattern = this.patternBuilder.build(
+                    randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(4))[0]);
+            } else {
+                pattern = buildExtendedPattern(randomBlocks);
+            }
+            XDOM document = createLargeDocument(randomBlocks);
+
+            List<Matcher> matches = pattern.findAll(document).collect(Collectors.toList());
+            assertEquals(RandomBlocks.describe(matches),
+                RandomBlocks.describe(pattern.findAllParallel(document, this.executor)),
+                pattern.getBlockPatterns().toString());
+        }
+    }
+
+    @Test
+    void findAllParallelWithPatternSetLikeFindAll()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(10);
+        List<Pattern> patterns = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int atomCount = 1 + randomBlocks.getRandom().nextInt(3);
+            patterns.add(this.patternBuilder.build(randomBlocks.createFixedLengthPattern(atomCount)[0]));
+            patterns.add(buildExtendedPattern(randomBlocks));
+        }
+        PatternSet patternSet = new PatternSet(patterns);
+        XDOM document = createLargeDocument(randomBlocks);
+
+        List<Matcher> matches = patternSet.findAll(document).collect(Collectors.toList());
+        List<Matcher> parallelMatches = patternSet.findAllParallel(document, this.executor);
+
+        assertFalse(matches.isEmpty());
+        assertEquals(RandomBlocks.describe(matches), RandomBlocks.describe(parallelMatches));
+        for (int i = 0; i < matches.size(); i++) {
+            assertSame(matches.get(i).getPattern(), parallelMatches.get(i).getPattern());
+        }
+    }
+
+    /**
+     * @return a document with enough blocks to be split in several tasks, and lists of siblings at several depths
+     */
+    private static XDOM createLargeDocument(RandomBlocks randomBlocks)
+    {
+        List<Block> sections = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            List<Block> blocks = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                blocks.addAll(randomBlocks.createDocument().getChildren());
+            }
+            sections.add(new GroupBlock(blocks));
+        }
+        XDOM document = new XDOM(sections);
+
+        // The tree should be much larger than a single task
+        assertTrue(document.getBlocks(new ClassBlockMatcher(Block.class), Block.Axes.DESCENDANT).size() > 10000);
+
+        return document;
+    }
+
+    private Pattern buildExtendedPattern(RandomBlocks randomBlocks)
+    {
+        while (true) {
+            try {
+                return this.patternBuilder.build(randomBlocks.createExtendedPattern()[0], PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+            }
+        }
+    }
+}
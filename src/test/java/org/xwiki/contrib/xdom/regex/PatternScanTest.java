@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for the scans done by {@link Pattern}.
+ *
+ * @version $Id$
+ */
+class PatternScanTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void scanLikeFindAll()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(23);
+        for (int i = 0; i < 1000; i++) {
+            Pattern pattern;
+            if (randomBlocks.getRandom().nextBoolean()) {
+                pattern = this.patternBuilder.build(
+                    randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(4))[0]);
+            } else {
+                pattern = buildExtendedPattern(randomBlocks);
+            }
+            XDOM document = randomBlocks.createDocument();
+            List<Block> blocks = document.getChildren().stream().flatMap(paragraph -> paragraph.getChildren().stream())
+                .collect(Collectors.toList());
+
+            // The matcher may be reset after the visit, so the match is described during the visit
+            List<String> matches = new ArrayList<>();
+            int count = pattern.scan(document, matcher -> {
+                matches.addAll(RandomBlocks.describe(blocks, Collections.singletonList(matcher)));
+                return true;
+            });
+
+            List<String> expectedMatches =
+                RandomBlocks.describe(blocks, pattern.findAll(document).collect(Collectors.toList()));
+            assertEquals(expectedMatches, matches, pattern.getBlockPatterns().toString());
+            assertEquals(expectedMatches.size(), count);
+        }
+    }
+
+    @Test
+    void scanWithMaxMatches()
+    {
+        XDOM document = createDocument("a", "b", "a", "a", "b", "a");
+        Pattern pattern = this.patternBuilder.build("^a$");
+        List<Block> matchedBlocks = new ArrayList<>();
+
+        assertEquals(2, pattern.scan(document, 2, matcher -> matchedBlocks.add(matcher.getMatchedBlock(0))));
+        assertEquals(Arrays.asList(0, 2), indexesOf(document, matchedBlocks));
+
+        matchedBlocks.clear();
+        assertEquals(4, pattern.scan(document, 10, matcher -> matchedBlocks.add(matcher.getMatchedBlock(0))));
+        assertEquals(Arrays.asList(0, 2, 3, 5), indexesOf(document, matchedBlocks));
+
+        assertEquals(0, pattern.scan(document, 0, matcher -> {
+            throw new AssertionError("No match should be visited");
+        }));
+    }
+
+    @Test
+    void scanUntilVisitorStops()
+    {
+        XDOM document = createDocument("a", "b", "a", "a", "b", "a");
+        Pattern pattern = this.patternBuilder.build("^a$");
+        List<Block> matchedBlocks = new ArrayList<>();
+
+        // The match on which the visitor stops is counted
+        assertEquals(3, pattern.scan(document, matcher -> {
+            matchedBlocks.add(matcher.getMatchedBlock(0));
+            return matchedBlocks.size() < 3;
+        }));
+        assertEquals(Arrays.asList(0, 2, 3), indexesOf(document, matchedBlocks));
+    }
+
+    @Test
+    void scanWithNegativeMaxMatches()
+    {
+        Pattern pattern = this.patternBuilder.build("^a$");
+        XDOM document = createDocument("a");
+
+        IllegalArgumentException exception =
+            assertThrows(IllegalArgumentException.class, () -> pattern.scan(document, -1, matcher -> true));
+        assertEquals("The maximum number of matches [-1] should not be negative", exception.getMessage());
+    }
+
+    @Test
+    void resetMatcherBetweenMatches()
+    {
+        XDOM document = createDocument("ab", ",", "a", ";", "ac", ",", "b");
+        Pattern pattern = this.patternBuilder.build("^a(b)?$?");
+        List<Matcher> matchers = new ArrayList<>();
+        List<String> matchedStrings = new ArrayList<>();
+        List<String> groups = new ArrayList<>();
+        List<Block> matchedBlocks = new ArrayList<>();
+
+        assertEquals(2, pattern.scan(document, matcher -> {
+            matchers.add(matcher);
+            matchedBlocks.add(matcher.getMatchedBlock(0));
+            matchedStrings.add(matcher.getMatchedString());
+            groups.add(matcher.getGroup(0, 1));
+            return true;
+        }));
+
+        // The same matcher is reused for the matches of a fixed-length pattern, without keeping the groups of the
+        // previous match
+        assertSame(matchers.get(0), matchers.get(1));
+        assertEquals(Arrays.asList("ab,", "a;"), matchedStrings);
+        assertEquals(Arrays.asList("b", null), groups);
+        assertEquals(Arrays.asList(0, 2), indexesOf(document, matchedBlocks));
+    }
+
+    private XDOM createDocument(String... text)
+    {
+        List<Block> blocks = new ArrayList<>();
+        for (String token : text) {
+            if (Character.isLetter(token.charAt(0))) {
+                blocks.add(new WordBlock(token));
+            } else {
+                blocks.addAll(RandomBlocks.createBlocks(token));
+            }
+        }
+
+        return new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+    }
+
+    private static List<Integer> indexesOf(XDOM document, List<Block> blocks)
+    {
+        List<Block> children = document.getChildren().get(0).getChildren();
+        List<Integer> indexes = new ArrayList<>();
+        for (Block block : blocks) {
+            int index = 0;
+            while (children.get(index) != block) {
+                index++;
+            }
+            indexes.add(index);
+        }
+
+        return indexes;
+    }
+
+    private Pattern buildExtendedPattern(RandomBlocks randomBlocks)
+    {
+        while (true) {
+            try {
+                return this.patternBuilder.build(randomBlocks.createExtendedPattern()[0], PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link PatternSerializer}.
+ *
+ * @version $Id$
+ */
+class PatternSerializerTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void writeAndReadFixedLengthPatterns() throws IOException
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(26);
+        for (int i = 0; i < 300; i++) {
+            String stringPattern = randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(4))[0];
+            Pattern pattern = this.patternBuilder.build(stringPattern);
+            Pattern readPattern = read(write(pattern));
+
+            assertTrue(readPattern.isFixedLength());
+            assertEquals(pattern.getPrimaryBlockPatternPosition(), readPattern.getPrimaryBlockPatternPosition());
+            assertSameMatches(pattern, readPattern, randomBlocks.createDocument());
+        }
+    }
+
+    @Test
+    void writeAndReadExtendedPatterns() throws IOException
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(27);
+        for (int i = 0; i < 300; i++) {
+            String stringPattern = randomBlocks.createExtendedPattern()[0];
+            Pattern pattern;
+            try {
+                pattern = this.patternBuilder.build(stringPattern, PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+                continue;
+            }
+            Pattern readPattern = read(write(pattern));
+
+            assertEquals(pattern.isFixedLength(), readPattern.isFixedLength());
+            assertEquals(pattern.getMinLength(), readPattern.getMinLength());
+            assertEquals(pattern.getMaxLength(), readPattern.getMaxLength());
+            assertSameMatches(pattern, readPattern, randomBlocks.createDocument());
+        }
+    }
+
+    @Test
+    void writeAndReadWordPatterns() throws IOException
+    {
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.listOf(
+            new WordBlock("foo"), new SpaceBlock(), new WordBlock("foobar"), new SpaceBlock(), new WordBlock("bar")))));
+        for (String stringPattern : new String[] { "^foo$", "^foo.*$", "^.*bar$", "^(foo|bar)$", "^f?o+$" }) {
+            Pattern pattern = this.patternBuilder.build(stringPattern);
+
+            assertSameMatches(pattern, read(write(pattern)), document);
+        }
+    }
+
+    @Test
+    void readSeveralPatterns() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        this.patternBuilder.build("^foo$ ^bar$").write(output);
+        this.patternBuilder.build("?").write(output);
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(3, Pattern.read(input).getBlockPatterns().size());
+        assertEquals(1, Pattern.read(input).getBlockPatterns().size());
+    }
+
+    @Test
+    void readInvalidPattern() throws IOException
+    {
+        byte[] bytes = write(this.patternBuilder.build("^foo$ ^bar$"));
+
+        assertThrows(IOException.class, () -> read(new byte[] { 1, 2, 3, 4 }));
+        assertThrows(IOException.class, () -> read(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    private static void assertSameMatches(Pattern expectedPattern, Pattern actualPattern, Block root)
+    {
+        assertEquals(RandomBlocks.describe(expectedPattern.findAll(root).collect(Collectors.toList())),
+            RandomBlocks.describe(actualPattern.findAll(root).collect(Collectors.toList())));
+    }
+
+    private static byte[] write(Pattern pattern) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pattern.write(new DataOutputStream(bytes));
+
+        return bytes.toByteArray();
+    }
+
+    private static Pattern read(byte[] bytes) throws IOException
+    {
+        return Pattern.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.listener.Format;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the replacements done by {@link Pattern}.
+ *
+ * @version $Id$
+ */
+class PatternTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void replaceAllWithBlockContainingMatchedBlocks()
+    {
+        Block first = new WordBlock("a");
+        Block space = new SpaceBlock();
+        Block last = new WordBlock("b");
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.listOf(new WordBlock("x"),
+            new SpaceBlock(), first, space, last, new SpaceBlock(), new WordBlock("y")))));
+        Pattern pattern = this.patternBuilder.build("^a$ ^b$");
+
+        assertEquals(1,
+            pattern.replaceAll(document, match -> new FormatBlock(match.getMatchedBlocks(), Format.BOLD)));
+        assertEquals("Paragraph[x, _, Format[a, _, b], _, y]", toString(document.getChildren().get(0)));
+
+        // The replaced blocks keep the sibling links given by the replacement block
+        assertNull(first.getPreviousSibling());
+        assertSame(space, first.getNextSibling());
+        assertSame(first, space.getPreviousSibling());
+        assertSame(last, space.getNextSibling());
+        assertSame(space, last.getPreviousSibling());
+        assertNull(last.getNextSibling());
+        assertTrue(pattern.matches(first));
+        assertEquals(1, pattern.findAll(document).count());
+    }
+
+    @Test
+    void replaceAllRemovesSiblingLinksOfReplacedBlocks()
+    {
+        Block first = new WordBlock("a");
+        Block last = new WordBlock("b");
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.listOf(new WordBlock("x"),
+            new SpaceBlock(), first, new SpaceBlock(), last, new SpaceBlock(), new WordBlock("y")))));
+
+        assertEquals(1, this.patternBuilder.build("^a$ ^b$").replaceAll(document, match -> new WordBlock("R")));
+        assertEquals("Paragraph[x, _, R, _, y]", toString(document.getChildren().get(0)));
+        assertNull(first.getPreviousSibling());
+        assertNull(first.getNextSibling());
+        assertNull(last.getPreviousSibling());
+        assertNull(last.getNextSibling());
+    }
+
+    @Test
+    void replaceAllFlattenedWithBlockContainingMatchedBlocks()
+    {
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.listOf(new WordBlock("x"),
+            new SpaceBlock(),
+            new FormatBlock(RandomBlocks.listOf(new WordBlock("big"), new SpaceBlock()), Format.ITALIC),
+            new WordBlock("deal"), new SpaceBlock(), new WordBlock("big"), new SpaceBlock(), new WordBlock("deal")))));
+
+        assertEquals(2, this.patternBuilder.build("^big$ ^deal$").replaceAllFlattened(document,
+            match -> new FormatBlock(match.getMatchedBlocks(), Format.BOLD)));
+        assertEquals("Paragraph[x, _, Format[big, _, deal], _, Format[big, _, deal]]",
+            toString(document.getChildren().get(0)));
+
+        // Replacing the second match rebuilds the children of the paragraph, which still contain the blocks of the first
+        // match
+        List<Block> children = document.getChildren().get(0).getChildren();
+        for (Block format : Arrays.asList(children.get(2), children.get(4))) {
+            for (Block child : format.getChildren()) {
+                assertSame(format, child.getParent());
+                assertSame(nextChild(format, child), child.getNextSibling());
+            }
+        }
+    }
+
+    @Test
+    void replaceAllInTrees()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(8);
+        for (int i = 0; i < 300; i++) {
+            Pattern pattern = this.patternBuilder.build(
+                randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(3))[0]);
+            XDOM document = randomBlocks.createDocument();
+            long matchCount = pattern.findAll(document).count();
+
+            assertEquals(matchCount, pattern.replaceAll(document, match -> new WordBlock("R")));
+            assertEquals(matchCount, Arrays.stream(toString(document).split("\\W+")).filter("R"::equals).count());
+        }
+    }
+
+    private static Block nextChild(Block parent, Block child)
+    {
+        List<Block> children = parent.getChildren();
+        int index = children.indexOf(child);
+
+        return (index + 1 < children.size()) ? children.get(index + 1) : null;
+    }
+
+    private static String toString(Block block)
+    {
+        if (block instanceof WordBlock) {
+            return ((WordBlock) block).getWord();
+        } else if (block instanceof SpaceBlock) {
+            return "_";
+        }
+
+        return block.getClass().getSimpleName().replace("Block", "")
+            + block.getChildren().stream().map(PatternTest::toString).collect(Collectors.toList());
+    }
+}
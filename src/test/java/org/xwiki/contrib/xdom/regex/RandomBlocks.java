@@ -0,0 +1,244 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.listener.Format;
+
+/**
+ * Generates random block trees and patterns, and describes matches so that they can be compared.
+ *
+ * @version $Id$
+ */
+final class RandomBlocks
+{
+    /**
+     * The atoms of the generated patterns, matching the blocks created by {@link #createBlock(char)}.
+     */
+    private static final String[] ATOMS = { "^a$", "^b$", "^[ab]$", " ", "?", "," };
+
+    /**
+     * The regular expressions matching the same characters as {@link #ATOMS}, in the text of the blocks.
+     */
+    private static final String[] CHARACTER_REGEXES = { "a", "b", "[ab]", " ", "[,;.]", "," };
+
+    private static final String[] QUANTIFIERS = { "*", "+", "{2}", "{1,3}", "{0,1}", "{2,}" };
+
+    private static final String CHARACTERS = "ab ,;.";
+
+    private final Random random;
+
+    RandomBlocks(long seed)
+    {
+        this.random = new Random(seed);
+    }
+
+    Random getRandom()
+    {
+        return random;
+    }
+
+    /**
+     * @param c a character of {@link #CHARACTERS}
+     * @return the block corresponding to the character: a word, a space or a special symbol
+     */
+    static Block createBlock(char c)
+    {
+        switch (c) {
+            case 'a':
+            case 'b':
+                return new WordBlock(String.valueOf(c));
+            case ' ':
+                return new SpaceBlock();
+            default:
+                return new SpecialSymbolBlock(c);
+        }
+    }
+
+    /**
+     * @param text a text made of the characters of {@link #CHARACTERS}
+     * @return one block per character
+     */
+    static List<Block> createBlocks(String text)
+    {
+        List<Block> blocks = new ArrayList<>();
+        for (char c : text.toCharArray()) {
+            blocks.add(createBlock(c));
+        }
+
+        return blocks;
+    }
+
+    String createText(int length)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * @return a random block, sometimes formatted
+     */
+    Block createBlock()
+    {
+        if (random.nextInt(10) == 0) {
+            return new FormatBlock(createBlocks(createText(1 + random.nextInt(3))), Format.BOLD);
+        }
+
+        return createBlock(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+    }
+
+    /**
+     * @return a document made of a few paragraphs of random blocks
+     */
+    XDOM createDocument()
+    {
+        List<Block> paragraphs = new ArrayList<>();
+        int paragraphCount = 1 + random.nextInt(4);
+        for (int i = 0; i < paragraphCount; i++) {
+            List<Block> blocks = new ArrayList<>();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                blocks.add(createBlock());
+            }
+            paragraphs.add(new ParagraphBlock(blocks));
+        }
+
+        return new XDOM(paragraphs);
+    }
+
+    /**
+     * @param atomCount the number of atoms
+     * @return a fixed-length pattern, and the equivalent Java regular expression to match against the text of the
+     *     blocks
+     */
+    String[] createFixedLengthPattern(int atomCount)
+    {
+        StringBuilder pattern = new StringBuilder();
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < atomCount; i++) {
+            int atom = random.nextInt(ATOMS.length);
+            pattern.append(ATOMS[atom]);
+            regex.append(CHARACTER_REGEXES[atom]);
+        }
+
+        return new String[] { pattern.toString(), regex.toString() };
+    }
+
+    /**
+     * @return an extended pattern, and the equivalent Java regular expression to match against the text of the blocks
+     */
+    String[] createExtendedPattern()
+    {
+        return createExtendedPattern(0);
+    }
+
+    private String[] createExtendedPattern(int depth)
+    {
+        int kind = random.nextInt(depth > 2 ? ATOMS.length : ATOMS.length + 4);
+        if (kind < ATOMS.length) {
+            return new String[] { ATOMS[kind], CHARACTER_REGEXES[kind] };
+        }
+
+        String[] first = createExtendedPattern(depth + 1);
+        switch (kind - ATOMS.length) {
+            case 0:
+                String[] second = createExtendedPattern(depth + 1);
+                return new String[] { first[0] + second[0], first[1] + second[1] };
+            case 1:
+                String[] alternative = createExtendedPattern(depth + 1);
+                return new String[] { '(' + first[0] + '|' + alternative[0] + ')',
+                    "(?:" + first[1] + '|' + alternative[1] + ')' };
+            default:
+                String quantifier = QUANTIFIERS[random.nextInt(QUANTIFIERS.length)];
+                return new String[] { '(' + first[0] + ')' + quantifier, "(?:" + first[1] + ')' + quantifier };
+        }
+    }
+
+    /**
+     * @param matches some matches
+     * @return the identities of the matched blocks of each match, to compare matches found in the same tree
+     */
+    static List<String> describe(List<Matcher> matches)
+    {
+        return matches.stream()
+            .map(match -> match.getMatchedBlocks().stream().map(block -> String.valueOf(System.identityHashCode(block)))
+                .collect(Collectors.joining(",")))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @param blocks the blocks in which the matches were found
+     * @param matches some matches
+     * @return the index of the first block and the matched string of each match
+     */
+    static List<String> describe(List<Block> blocks, List<Matcher> matches)
+    {
+        Map<Block, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            indexes.put(blocks.get(i), i);
+        }
+
+        return matches.stream().map(match -> indexes.get(match.getMatchedBlock(0)) + ":" + match.getMatchedString())
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @param regex a Java regular expression
+     * @param text the text to search
+     * @return the start and the text of every match, as described by {@link #describe(List, List)}
+     */
+    static List<String> findAll(java.util.regex.Pattern regex, String text)
+    {
+        List<String> matches = new ArrayList<>();
+        java.util.regex.Matcher matcher = regex.matcher(text);
+        while (matcher.find()) {
+            matches.add(matcher.start() + ":" + matcher.group());
+        }
+
+        return matches;
+    }
+
+    /**
+     * @param blocks some blocks
+     * @return a mutable list of the blocks
+     */
+    static List<Block> listOf(Block... blocks)
+    {
+        return new ArrayList<>(Arrays.asList(blocks));
+    }
+}
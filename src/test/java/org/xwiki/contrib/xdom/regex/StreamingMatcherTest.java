@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.listener.Format;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link StreamingMatcher}.
+ *
+ * @version $Id$
+ */
+class StreamingMatcherTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @AfterEach
+    void tearDown()
+    {
+        Instrumentation.setMetrics(null);
+    }
+
+    @Test
+    void matchLikeFindAll()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(14);
+        for (int i = 0; i < 1000; i++) {
+            Pattern pattern;
+            if (randomBlocks.getRandom().nextBoolean()) {
+                pattern = this.patternBuilder.build(
+                    randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(4))[0]);
+            } else {
+                pattern = buildExtendedPattern(randomBlocks);
+            }
+            XDOM document = randomBlocks.createDocument();
+
+            assertEquals(findAll(pattern, document), stream(pattern, document), pattern.getBlockPatterns().toString());
+        }
+    }
+
+    @Test
+    void skipOverlappingMatches()
+    {
+        XDOM document = createDocument("a a a a a");
+
+        assertEquals(Arrays.asList("a a", "a a"), stream(this.patternBuilder.build("^a$ ^a$"), document));
+        assertEquals(Arrays.asList("a a a a a"),
+            stream(this.patternBuilder.build("^a$( ^a$)*", PatternBuilder.EXTENDED), document));
+        assertEquals(Arrays.asList("a a", "a a"),
+            stream(this.patternBuilder.build("^a$ ^a${0,1}", PatternBuilder.EXTENDED), document));
+    }
+
+    @Test
+    void resetWindowOnOtherEvents()
+    {
+        // The formatting ends the list of siblings, as in the XDOM
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.listOf(
+            new WordBlock("a"), new FormatBlock(RandomBlocks.createBlocks(" a"), Format.BOLD),
+            new ParagraphBlock(RandomBlocks.createBlocks("a ")), new WordBlock("a")))));
+
+        for (Pattern pattern : Arrays.asList(this.patternBuilder.build("^a$ "), this.patternBuilder.build(" ^a$"),
+            this.patternBuilder.build("^a$ +^a$", PatternBuilder.EXTENDED))) {
+            assertEquals(findAll(pattern, document), stream(pattern, document));
+        }
+        assertEquals(Arrays.asList(" a", "a "),
+            stream(this.patternBuilder.build("( ^a$|^a$ )", PatternBuilder.EXTENDED), document));
+    }
+
+    @Test
+    void matchLongSequences()
+    {
+        // The window is shifted back to the start of its array many times
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append(i % 7 == 0 ? "b" : "a").append(i % 3 == 0 ? ',' : ' ');
+        }
+        XDOM document = createDocument(text.toString());
+
+        for (String stringPattern : new String[] { "^a$ ^b$,", "^b$", "^a$ ^a$ ^a$ ^a$ ^a$ ^a$ ^a$" }) {
+            Pattern pattern = this.patternBuilder.build(stringPattern);
+            assertEquals(findAll(pattern, document), stream(pattern, document), stringPattern);
+        }
+        for (String stringPattern : new String[] { "(^a$ )+^b$", "^a$( |,)(^a$( |,)){2,}", "^b$( |,)(^a$ ){0,3}" }) {
+            Pattern pattern = this.patternBuilder.build(stringPattern, PatternBuilder.EXTENDED);
+            assertEquals(findAll(pattern, document), stream(pattern, document), stringPattern);
+        }
+    }
+
+    @Test
+    void evaluateWordRegexOncePerCandidate()
+    {
+        XDOM document = createDocument("k1 k2 x k3 k4");
+        Pattern pattern = this.patternBuilder.build("^k[0-9]$");
+        MatchingStatistics statistics = new MatchingStatistics();
+        Instrumentation.setMetrics(statistics);
+
+        assertEquals(4, stream(pattern, document).size());
+        assertEquals(4, statistics.getRegexEvaluationCount());
+    }
+
+    private Pattern buildExtendedPattern(RandomBlocks randomBlocks)
+    {
+        while (true) {
+            try {
+                return this.patternBuilder.build(randomBlocks.createExtendedPattern()[0], PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+            }
+        }
+    }
+
+    private static XDOM createDocument(String text)
+    {
+        List<Block> blocks = new ArrayList<>();
+        for (String word : text.split("(?<=[ ,])|(?=[ ,])")) {
+            blocks.add(word.length() == 1 && !Character.isLetter(word.charAt(0)) ? RandomBlocks.createBlock(
+                word.charAt(0)) : new WordBlock(word));
+        }
+
+        return new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+    }
+
+    private static List<String> findAll(Pattern pattern, Block root)
+    {
+        return pattern.findAll(root).map(Matcher::getMatchedString).collect(Collectors.toList());
+    }
+
+    private static List<String> stream(Pattern pattern, Block root)
+    {
+        List<String> matches = new ArrayList<>();
+        root.traverse(new StreamingMatcher(pattern, matcher -> matches.add(matcher.getMatchedString())));
+
+        return matches;
+    }
+}
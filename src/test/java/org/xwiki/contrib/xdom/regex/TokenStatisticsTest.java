@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.xdom.regex.internal.AlternativeBlockPattern;
+import org.xwiki.contrib.xdom.regex.internal.BlockMatcher;
+import org.xwiki.contrib.xdom.regex.internal.BlockPattern;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Unit tests for {@link TokenStatistics} and {@link Pattern#optimize(TokenStatistics)}.
+ *
+ * @version $Id$
+ */
+class TokenStatisticsTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    private final TokenStatistics statistics = new TokenStatistics(createDocument());
+
+    /**
+     * A pattern block whose number of matches can't be estimated.
+     */
+    private final BlockPattern<Block> customBlockPattern = new BlockPattern<Block>()
+    {
+        @Override
+        public Class<? extends Block> getBlockClass()
+        {
+            return FormatBlock.class;
+        }
+
+        @Override
+        public BlockMatcher matches(Block block)
+        {
+            return new BlockMatcher(block instanceof FormatBlock);
+        }
+    };
+
+    @AfterEach
+    void tearDown()
+    {
+        Instrumentation.setMetrics(null);
+    }
+
+    @Test
+    void countTokens()
+    {
+        assertEquals(7, this.statistics.getWordCount());
+        assertEquals(3, this.statistics.getWordCount("the"));
+        assertEquals(1, this.statistics.getWordCount("XWiki"));
+        assertEquals(0, this.statistics.getWordCount("missing"));
+        assertEquals(5, this.statistics.getWordCounts().size());
+        assertEquals(4, this.statistics.getSymbolCount());
+        assertEquals(3, this.statistics.getSymbolCount('.'));
+        assertEquals(0, this.statistics.getSymbolCount(';'));
+        assertEquals(6, this.statistics.getSpaceCount());
+
+        this.statistics.add(createDocument());
+
+        assertEquals(14, this.statistics.getWordCount());
+        assertEquals(6, this.statistics.getWordCount("the"));
+        assertEquals(6, this.statistics.getSymbolCount('.'));
+        assertEquals(12, this.statistics.getSpaceCount());
+    }
+
+    @Test
+    void estimateMatches()
+    {
+        MatchingStatistics matchingStatistics = new MatchingStatistics();
+        Instrumentation.setMetrics(matchingStatistics);
+
+        assertEquals(1, estimateMatches("^xwiki$"));
+        assertEquals(2, estimateMatches("^(?i)xwiki$"));
+        assertEquals(2, estimateMatches("^xwiki.*$"));
+        assertEquals(2, estimateMatches("^.*wiki$"));
+        assertEquals(4, estimateMatches("^[tw].*$"));
+        assertEquals(0, estimateMatches("^missing$"));
+        assertEquals(3, estimateMatches("."));
+        assertEquals(4, estimateMatches("?"));
+        assertEquals(6, estimateMatches(" "));
+
+        // The regular expressions evaluated to estimate the matches are not reported
+        assertEquals(0, matchingStatistics.getRegexEvaluationCount());
+    }
+
+    @Test
+    void estimateAlternativeMatches()
+    {
+        List<BlockPattern<? extends Block>> alternatives = new ArrayList<>();
+        alternatives.add(getBlockPattern("^the$"));
+        alternatives.add(getBlockPattern(","));
+
+        assertEquals(4, this.statistics.estimateMatches(new AlternativeBlockPattern(alternatives)));
+
+        alternatives.add(this.customBlockPattern);
+
+        assertEquals(-1, this.statistics.estimateMatches(this.customBlockPattern));
+        assertEquals(-1, this.statistics.estimateMatches(new AlternativeBlockPattern(alternatives)));
+    }
+
+    @Test
+    void optimizeWithRareWord()
+    {
+        Pattern pattern = this.patternBuilder.build("^xwiki$.");
+        assertEquals(1, pattern.getPrimaryBlockPatternPosition());
+
+        Pattern optimizedPattern = pattern.optimize(this.statistics);
+
+        assertNotSame(pattern, optimizedPattern);
+        assertEquals(0, optimizedPattern.getPrimaryBlockPatternPosition());
+        assertSame(optimizedPattern.getBlockPatterns().get(0), optimizedPattern.getPrimaryBlockPattern());
+        assertEquals(pattern.getBlockPatterns(), optimizedPattern.getBlockPatterns());
+
+        XDOM document = createDocument();
+        List<Matcher> matches = optimizedPattern.findAll(document).collect(Collectors.toList());
+        assertEquals(RandomBlocks.describe(pattern.findAll(document).collect(Collectors.toList())),
+            RandomBlocks.describe(matches));
+        assertEquals(1, matches.size());
+        assertEquals("xwiki.", matches.get(0).getMatchedString());
+
+        // The matcher expects the block matched by the new primary block pattern
+        assertEquals("xwiki.", optimizedPattern.getMatcher(matches.get(0).getMatchedBlock(0)).getMatchedString());
+    }
+
+    @Test
+    void optimizeWithRareWordAfterCommonWord()
+    {
+        Pattern pattern = this.patternBuilder.build("^the$ ^xwiki$");
+        assertEquals(0, pattern.getPrimaryBlockPatternPosition());
+
+        assertEquals(2, pattern.optimize(this.statistics).getPrimaryBlockPatternPosition());
+    }
+
+    @Test
+    void optimizeWithoutMoreSelectivePatternBlock()
+    {
+        // The word and the symbol have the same number of occurrences
+        Pattern pattern = this.patternBuilder.build("^the$.");
+        assertSame(pattern, pattern.optimize(this.statistics));
+
+        Pattern optimizedPattern = this.patternBuilder.build("^xwiki$.").optimize(this.statistics);
+        assertSame(optimizedPattern, optimizedPattern.optimize(this.statistics));
+
+        // Patterns that are not fixed-length are anchored on their first block
+        Pattern extendedPattern = this.patternBuilder.build("(^the$ )+^xwiki$", PatternBuilder.EXTENDED);
+        assertSame(extendedPattern, extendedPattern.optimize(this.statistics));
+
+        // The primary block pattern can't be compared to the other ones
+        Pattern customPattern = new Pattern(Arrays.asList(this.customBlockPattern, getBlockPattern("^xwiki$")));
+        assertSame(customPattern, customPattern.optimize(this.statistics));
+    }
+
+    private long estimateMatches(String pattern)
+    {
+        return this.statistics.estimateMatches(getBlockPattern(pattern));
+    }
+
+    private BlockPattern<? extends Block> getBlockPattern(String pattern)
+    {
+        return this.patternBuilder.build(pattern).getBlockPatterns().get(0);
+    }
+
+    /**
+     * @return a document made of {@code XWiki, the wiki. the xwiki. the xwikis.}
+     */
+    private static XDOM createDocument()
+    {
+        List<Block> blocks = new ArrayList<>();
+        for (String token : "XWiki|,| |the| |wiki|.| |the| |xwiki|.| |the| |xwikis|.".split("\\|")) {
+            if (token.equals(" ")) {
+                blocks.add(new SpaceBlock());
+            } else if (Character.isLetter(token.charAt(0))) {
+                blocks.add(new WordBlock(token));
+            } else {
+                blocks.add(new SpecialSymbolBlock(token.charAt(0)));
+            }
+        }
+
+        return new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+    }
+}
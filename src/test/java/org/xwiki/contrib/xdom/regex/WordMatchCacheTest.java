@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.xdom.regex.internal.WordBlockPattern;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WordMatchCache}.
+ *
+ * @version $Id$
+ */
+class WordMatchCacheTest
+{
+    @AfterEach
+    void tearDown()
+    {
+        Instrumentation.setMetrics(null);
+    }
+
+    @Test
+    void testLikeWordPattern()
+    {
+        WordMatchCache cache = new WordMatchCache();
+        List<WordBlockPattern> wordBlockPatterns = new ArrayList<>();
+        for (String regex : new String[] { "k[0-9]*", "k1.*", ".*2", "[a-z]+" }) {
+            wordBlockPatterns.add(new WordBlockPattern(regex));
+        }
+
+        // Go through more words than the cache can hold to check that results are replaced correctly
+        for (int i = 0; i < 3 * WordMatchCache.MAX_CAPACITY; i++) {
+            Block block = new WordBlock("k" + (i % (WordMatchCache.MAX_CAPACITY / 2)));
+            for (WordBlockPattern wordBlockPattern : wordBlockPatterns) {
+                assertEquals(wordBlockPattern.test(block), cache.test(wordBlockPattern, block, null));
+            }
+        }
+
+        WordBlockPattern wordBlockPattern = wordBlockPatterns.get(0);
+        assertFalse(cache.test(wordBlockPattern, new SpaceBlock(), wordBlockPattern.createRegexMatcher()));
+    }
+
+    @Test
+    void evaluateRegexOncePerWord()
+    {
+        WordMatchCache cache = new WordMatchCache();
+        WordBlockPattern wordBlockPattern = new WordBlockPattern("k[0-9]*");
+        MatchingStatistics statistics = new MatchingStatistics();
+        Instrumentation.setMetrics(statistics);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cache.test(wordBlockPattern, new WordBlock("k" + (i % 10)), null));
+        }
+
+        assertEquals(10, statistics.getRegexEvaluationCount());
+    }
+
+    @Test
+    void scanWithFewerRegexEvaluations()
+    {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            blocks.add(new WordBlock("k" + (i % 20)));
+            blocks.add(new SpaceBlock());
+        }
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(blocks)));
+        Pattern pattern = new PatternBuilder().build("^k[0-9]*$ ^k1.*$");
+        MatchingStatistics statistics = new MatchingStatistics();
+        Instrumentation.setMetrics(statistics);
+
+        assertEquals(pattern.findAll(document).count(), pattern.scan(document, match -> true));
+        assertTrue(statistics.getRegexEvaluationCount() < 100, String.valueOf(statistics.getRegexEvaluationCount()));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Unit tests for {@link XDOMIndex}.
+ *
+ * @version $Id$
+ */
+class XDOMIndexTest
+{
+    private final PatternBuilder patternBuilder = new PatternBuilder();
+
+    @Test
+    void findAllLikeTraversal()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(13);
+        for (int i = 0; i < 500; i++) {
+            Pattern pattern = createPattern(randomBlocks);
+            XDOM document = randomBlocks.createDocument();
+
+            assertSameMatches(pattern, document, new XDOMIndex(document));
+        }
+    }
+
+    @Test
+    void findAllWithAlternativePrimaryBlockPattern()
+    {
+        XDOM document = new XDOM(Collections.singletonList(new ParagraphBlock(RandomBlocks.createBlocks("a b, a;b"))));
+        Pattern pattern = this.patternBuilder.build("^[ab]$", PatternBuilder.EXTENDED);
+        Pattern alternativePattern = this.patternBuilder.build("(^a$|^[ab]$)", PatternBuilder.EXTENDED);
+
+        assertEquals(4, alternativePattern.findAll(new XDOMIndex(document)).count());
+        assertSameMatches(pattern, document, new XDOMIndex(document));
+        assertSameMatches(alternativePattern, document, new XDOMIndex(document));
+    }
+
+    @Test
+    void updateIndex()
+    {
+        RandomBlocks randomBlocks = new RandomBlocks(130);
+        Random random = randomBlocks.getRandom();
+        for (int i = 0; i < 100; i++) {
+            XDOM document = randomBlocks.createDocument();
+            XDOMIndex index = new XDOMIndex(document);
+            for (int j = 0; j < 30; j++) {
+                List<Block> paragraphs = document.getChildren();
+                Block paragraph = paragraphs.get(random.nextInt(paragraphs.size()));
+                List<Block> children = new ArrayList<>(paragraph.getChildren());
+                int edit = random.nextInt(3);
+                if (edit == 0 || children.isEmpty()) {
+                    Block block = randomBlocks.createBlock();
+                    children.add(random.nextInt(children.size() + 1), block);
+                    paragraph.setChildren(children);
+                    index.add(block);
+                } else if (edit == 1) {
+                    Block block = children.remove(random.nextInt(children.size()));
+                    index.remove(block);
+                    paragraph.setChildren(children);
+                } else {
+                    Pattern pattern = this.patternBuilder.build(randomBlocks.createFixedLengthPattern(1)[0]);
+                    List<Matcher> matches = pattern.findAll(index).collect(Collectors.toList());
+                    if (!matches.isEmpty()) {
+                        index.replace(matches.get(random.nextInt(matches.size())), randomBlocks.createBlock());
+                    }
+                }
+
+                Pattern pattern = createPattern(randomBlocks);
+                assertSameMatches(pattern, document, index);
+                TokenStatistics statistics = new TokenStatistics(document);
+                assertEquals(statistics.getWordCounts(), index.getStatistics().getWordCounts());
+                assertEquals(statistics.getSymbolCount(), index.getStatistics().getSymbolCount());
+                assertEquals(statistics.getSpaceCount(), index.getStatistics().getSpaceCount());
+            }
+        }
+    }
+
+    @Test
+    void skipBlocksRemovedWithoutUpdatingIndex()
+    {
+        Block word = new WordBlock("a");
+        Block paragraph = new ParagraphBlock(RandomBlocks.listOf(new WordBlock("b"), new SpaceBlock(), word));
+        XDOMIndex index = new XDOMIndex(new XDOM(RandomBlocks.listOf(paragraph)));
+
+        // The removed block still has the paragraph as parent
+        paragraph.setChildren(new ArrayList<>(paragraph.getChildren().subList(0, 2)));
+
+        assertEquals(0, this.patternBuilder.build("^a$").findAll(index).count());
+        assertEquals(1, this.patternBuilder.build("^b$ ").findAll(index).count());
+    }
+
+    @Test
+    void getBlocksSnapshots()
+    {
+        Block word = new WordBlock("a");
+        Block space = new SpaceBlock();
+        Block paragraph = new ParagraphBlock(RandomBlocks.listOf(word, space));
+        XDOMIndex index = new XDOMIndex(new XDOM(RandomBlocks.listOf(paragraph)));
+        List<Block> wordBlocks = index.getWordBlocks("a");
+        List<Block> spaceBlocks = index.getSpaceBlocks();
+        List<Block> symbolBlocks = index.getSymbolBlocks(',');
+
+        Block otherWord = new WordBlock("a");
+        paragraph.setChildren(RandomBlocks.listOf(otherWord, RandomBlocks.createBlock(',')));
+        index.remove(word);
+        index.remove(space);
+        index.add(paragraph);
+
+        assertEquals(1, wordBlocks.size());
+        assertSame(word, wordBlocks.get(0));
+        assertEquals(1, spaceBlocks.size());
+        assertEquals(0, symbolBlocks.size());
+        assertSame(otherWord, index.getWordBlocks("a").get(0));
+        assertEquals(0, index.getSpaceBlocks().size());
+        assertEquals(1, index.getSymbolBlocks(',').size());
+    }
+
+    private Pattern createPattern(RandomBlocks randomBlocks)
+    {
+        if (randomBlocks.getRandom().nextBoolean()) {
+            return this.patternBuilder.build(
+                randomBlocks.createFixedLengthPattern(1 + randomBlocks.getRandom().nextInt(3))[0]);
+        }
+
+        while (true) {
+            try {
+                return this.patternBuilder.build(randomBlocks.createExtendedPattern()[0], PatternBuilder.EXTENDED);
+            } catch (IllegalArgumentException e) {
+                // Patterns matching no block are rejected
+            }
+        }
+    }
+
+    /**
+     * The index reports the matches parent by parent, so the matches are compared regardless of their order.
+     */
+    private static void assertSameMatches(Pattern pattern, Block root, XDOMIndex index)
+    {
+        List<String> matches = RandomBlocks.describe(pattern.findAll(root).collect(Collectors.toList()));
+        List<String> indexedMatches = RandomBlocks.describe(pattern.findAll(index).collect(Collectors.toList()));
+        Collections.sort(matches);
+        Collections.sort(indexedMatches);
+
+        assertEquals(matches, indexedMatches);
+    }
+}
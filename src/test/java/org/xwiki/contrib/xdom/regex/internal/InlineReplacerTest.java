@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.xdom.regex.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.listener.Format;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link InlineReplacer}.
+ *
+ * @version $Id$
+ */
+class InlineReplacerTest
+{
+    @Test
+    void replaceSiblings()
+    {
+        Block first = new WordBlock("big");
+        Block last = new WordBlock("deal");
+        Block paragraph = new ParagraphBlock(listOf(new WordBlock("a"), first, new SpaceBlock(), last));
+
+        InlineReplacer.replace(first, last, new WordBlock("R"));
+
+        assertEquals("Paragraph[a, R]", toString(paragraph));
+    }
+
+    @Test
+    void replaceAcrossFormatting()
+    {
+        Block first = new WordBlock("big");
+        Block last = new WordBlock("deal");
+        Block paragraph = new ParagraphBlock(listOf(new WordBlock("a"), new SpaceBlock(),
+            new FormatBlock(listOf(new WordBlock("very"), new SpaceBlock(), first, new SpaceBlock()), Format.ITALIC),
+            new FormatBlock(listOf(last, new SpaceBlock(), new WordBlock("b")), Format.BOLD)));
+
+        InlineReplacer.replace(first, last, new WordBlock("R"));
+
+        assertEquals("Paragraph[a, _, Format[very, _], R, Format[_, b]]", toString(paragraph));
+    }
+
+    @Test
+    void removeFormattedBlocks()
+    {
+        Block first = new WordBlock("big");
+        Block last = new WordBlock("deal");
+        Block paragraph = new ParagraphBlock(listOf(new WordBlock("a"),
+            new FormatBlock(listOf(first, new SpaceBlock()), Format.ITALIC), last));
+
+        InlineReplacer.replace(first, last, null);
+
+        assertEquals("Paragraph[a]", toString(paragraph));
+    }
+
+    @Test
+    void replaceWithBlockContainingReplacedBlocks()
+    {
+        Block first = new WordBlock("big");
+        Block last = new WordBlock("deal");
+        Block space = new SpaceBlock();
+        Block paragraph = new ParagraphBlock(listOf(new WordBlock("a"),
+            new FormatBlock(listOf(first, space), Format.ITALIC), last));
+        Block firstParent = first.getParent();
+        Block lastParent = last.getParent();
+
+        // Building the replacement changes the parents of the replaced blocks
+        Block replacement = new FormatBlock(listOf(first, space, last), Format.BOLD);
+        InlineReplacer.replace(first, firstParent, last, lastParent, replacement);
+
+        assertEquals("Paragraph[a, Format[big, _, deal]]", toString(paragraph));
+    }
+
+    private static List<Block> listOf(Block... blocks)
+    {
+        return new ArrayList<>(Arrays.asList(blocks));
+    }
+
+    private static String toString(Block block)
+    {
+        if (block instanceof WordBlock) {
+            return ((WordBlock) block).getWord();
+        } else if (block instanceof SpaceBlock) {
+            return "_";
+        }
+
+        return block.getClass().getSimpleName().replace("Block", "")
+            + block.getChildren().stream().map(InlineReplacerTest::toString).collect(Collectors.toList());
+    }
+}